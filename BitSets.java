@@ -0,0 +1,126 @@
+package automata.nsa;
+
+/*
+ * Helper methods for sets of NSA states represented as bitsets (long[]).
+ * State q is in the set when bit q%64 of word q/64 is on. All sets of the same NSA have the same length.
+ */
+final class BitSets {
+
+	private BitSets() {}
+
+	/*
+	 * An empty set able to hold the states 0..size-1
+	 */
+	static long[] create(int size)
+	{
+		return new long[(size + 63) >>> 6];
+	}
+
+	static boolean contains(long[] set, int state)
+	{
+		return (set[state >>> 6] & (1L << state)) != 0;
+	}
+
+	static void add(long[] set, int state)
+	{
+		set[state >>> 6] |= 1L << state;
+	}
+
+	static boolean isEmpty(long[] set)
+	{
+		for(long word : set)
+		{
+			if(word != 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Whether the sets have a state in common
+	 */
+	static boolean intersects(long[] set1, long[] set2)
+	{
+		for(int i = 0; i < set1.length; i++)
+		{
+			if((set1[i] & set2[i]) != 0)
+				return true;
+		}
+
+		return false;
+	}
+
+	/*
+	 * The first state in the set that is not smaller than from, or -1 if there is none
+	 */
+	static int nextSetBit(long[] set, int from)
+	{
+		int wordIndex = from >>> 6;
+
+		if(wordIndex >= set.length)
+			return -1;
+
+		long word = set[wordIndex] & (-1L << from);
+
+		while(true)
+		{
+			if(word != 0)
+				return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+
+			if(++wordIndex == set.length)
+				return -1;
+
+			word = set[wordIndex];
+		}
+	}
+
+	/*
+	 * target = target | other
+	 */
+	static void or(long[] target, long[] other)
+	{
+		for(int i = 0; i < target.length; i++)
+		{
+			target[i] |= other[i];
+		}
+	}
+
+	/*
+	 * target = target & other
+	 */
+	static void and(long[] target, long[] other)
+	{
+		for(int i = 0; i < target.length; i++)
+		{
+			target[i] &= other[i];
+		}
+	}
+
+	/*
+	 * target = target & ~other
+	 */
+	static void andNot(long[] target, long[] other)
+	{
+		for(int i = 0; i < target.length; i++)
+		{
+			target[i] &= ~other[i];
+		}
+	}
+
+	static String toString(long[] set)
+	{
+		StringBuilder builder = new StringBuilder("[");
+
+		for(int state = nextSetBit(set, 0); state >= 0; state = nextSetBit(set, state + 1))
+		{
+			if(builder.length() > 1)
+				builder.append(", ");
+
+			builder.append(state);
+		}
+
+		return builder.append(']').toString();
+	}
+
+}
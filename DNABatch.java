@@ -0,0 +1,581 @@
+package automata.nsa;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Converts many NSAs in one JVM, so that a pipeline of small conversions pays for the JVM startup and the JIT
+ * warmup once. Jobs (an input NSA and the path of its output DNA) run on a pool of a fixed number of threads,
+ * each job on one thread, and a job running past the timeout is interrupted (see DNAExplorer.explore).
+ * Every job is reported with its latency as it ends, and a summary gives the aggregate throughput.
+ *
+ * Jobs come from a directory (every .gv file), from lines of an input and an output path separated by whitespace
+ * (see readJobs), or from the clients of a local server on a Unix socket (see serve).
+ */
+public class DNABatch {
+
+	private int threads;
+
+	private long timeoutMillis;
+
+	private boolean binary;
+
+	private boolean withTrees;
+
+	private boolean minimize;
+
+	private boolean prune;
+
+	private boolean sccAware;
+
+	private ExecutorService pool;
+
+	private ScheduledExecutorService timer;
+
+	/*
+	 * All the jobs run so far, for the stats of the server
+	 */
+	private Statistics total = new Statistics();
+
+	/*
+	 * A conversion of the NSA in the input file to the DNA in the output file
+	 */
+	public static class Job
+	{
+		private String input;
+		private String output;
+
+		public Job(String input, String output)
+		{
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public String toString() {return input + " " + output;}
+	}
+
+	private enum Status {OK, FAILED, TIMEOUT}
+
+	/*
+	 * How a job ended, and its latency
+	 */
+	private static class Result
+	{
+		private Job job;
+		private Status status;
+		private int states;
+		private String message;
+		private long nanos;
+
+		private Result(Job job, Status status, int states, String message, long nanos)
+		{
+			this.job = job;
+			this.status = status;
+			this.states = states;
+			this.message = message;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			switch(status)
+			{
+			case OK:
+				return String.format("ok %s %s: %d states in %.1f ms", job.input, job.output, states, nanos / 1e6);
+			case TIMEOUT:
+				return String.format("timeout %s: stopped after %.1f ms", job.input, nanos / 1e6);
+			default:
+				return String.format("failed %s: %s after %.1f ms", job.input, message, nanos / 1e6);
+			}
+		}
+	}
+
+	/*
+	 * The latencies of a set of jobs, and the time from the first to the last. Safe for concurrent use.
+	 */
+	private static class Statistics
+	{
+		private List<Long> latencies = new ArrayList<Long>();
+		private int[] counts = new int[Status.values().length];
+		private long start = System.nanoTime();
+		private long end = start;
+
+		private synchronized void add(Result result)
+		{
+			latencies.add(result.nanos);
+			counts[result.status.ordinal()]++;
+			end = System.nanoTime();
+		}
+
+		private synchronized String summary()
+		{
+			List<Long> sorted = new ArrayList<Long>(latencies);
+			double seconds = Math.max((end - start) / 1e9, 1e-9);
+			long sum = 0;
+
+			Collections.sort(sorted);
+
+			for(long latency : sorted)
+			{
+				sum += latency;
+			}
+
+			return String.format("%d jobs: %d ok, %d failed, %d timed out in %.2f s (%.1f jobs/s), "
+					+ "latency mean %.1f ms, median %.1f ms, p95 %.1f ms, max %.1f ms", sorted.size(),
+					counts[Status.OK.ordinal()], counts[Status.FAILED.ordinal()], counts[Status.TIMEOUT.ordinal()],
+					seconds, sorted.size() / seconds, sorted.isEmpty() ? 0 : sum / 1e6 / sorted.size(),
+					percentile(sorted, 0.5), percentile(sorted, 0.95), percentile(sorted, 1));
+		}
+
+		private static double percentile(List<Long> sorted, double fraction)
+		{
+			if(sorted.isEmpty())
+				return 0;
+
+			return sorted.get((int) Math.ceil(fraction * sorted.size()) - 1) / 1e6;
+		}
+	}
+
+	/*
+	 * Interrupts the thread of a job once its time is up, unless the job ended first
+	 */
+	private class Alarm implements Runnable
+	{
+		private Thread worker = Thread.currentThread();
+		private boolean done;
+		private boolean fired;
+		private ScheduledFuture<?> future;
+
+		private Alarm()
+		{
+			future = timer.schedule(this, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public synchronized void run()
+		{
+			if(!done)
+			{
+				fired = true;
+				worker.interrupt();
+			}
+		}
+
+		private synchronized boolean hasFired() {return fired;}
+
+		/*
+		 * Called by the job when it ends. Clears an interrupt that came too late to stop it.
+		 */
+		private synchronized void disarm()
+		{
+			done = true;
+			future.cancel(false);
+			Thread.interrupted();
+		}
+	}
+
+	/*
+	 * A batch running jobs on the given number of threads, interrupting a job after timeoutMillis (0 for no limit)
+	 */
+	public DNABatch(int threads, long timeoutMillis)
+	{
+		this.threads = threads;
+		this.timeoutMillis = timeoutMillis;
+		this.pool = Executors.newFixedThreadPool(threads, daemonThreads("DNA batch worker"));
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("DNA batch timer"));
+	}
+
+	private static ThreadFactory daemonThreads(final String name)
+	{
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		};
+	}
+
+	/*
+	 * Writes the DNAs in the binary format (see DNAFile), with their trees if withTrees is set
+	 */
+	public void setBinary(boolean binary, boolean withTrees)
+	{
+		this.binary = binary;
+		this.withTrees = withTrees;
+	}
+
+	public void setMinimize(boolean minimize) {this.minimize = minimize;}
+
+	public void setPrune(boolean prune) {this.prune = prune;}
+
+	public void setSccAware(boolean sccAware) {this.sccAware = sccAware;}
+
+	public int getThreads() {return threads;}
+
+	/*
+	 * A job for every .gv file of the directory, by name, converted into a file of the same name in the output
+	 * directory (.dot, or .dna in the binary format)
+	 */
+	public List<Job> directoryJobs(Path directory, Path outputDirectory) throws IOException
+	{
+		List<Path> inputs = new ArrayList<Path>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.gv"))
+		{
+			for(Path input : stream)
+			{
+				inputs.add(input);
+			}
+		}
+
+		Collections.sort(inputs);
+		Files.createDirectories(outputDirectory);
+
+		List<Job> jobs = new ArrayList<Job>();
+
+		for(Path input : inputs)
+		{
+			String name = input.getFileName().toString();
+			String output = name.substring(0, name.length() - ".gv".length()) + (binary ? ".dna" : ".dot");
+
+			jobs.add(new Job(input.toString(), outputDirectory.resolve(output).toString()));
+		}
+
+		return jobs;
+	}
+
+	/*
+	 * Reads jobs, one per line as the input and the output path separated by whitespace.
+	 * Empty lines and lines starting with '#' are skipped.
+	 */
+	public static List<Job> readJobs(BufferedReader reader) throws IOException
+	{
+		List<Job> jobs = new ArrayList<Job>();
+		String line;
+
+		while((line = reader.readLine()) != null)
+		{
+			line = line.trim();
+
+			if(!line.isEmpty() && !line.startsWith("#"))
+				jobs.add(parseJob(line));
+		}
+
+		return jobs;
+	}
+
+	private static Job parseJob(String line)
+	{
+		String[] paths = line.split("\\s+");
+
+		if(paths.length != 2)
+			throw new IllegalArgumentException("A job is an input and an output path, got: " + line);
+
+		return new Job(paths[0], paths[1]);
+	}
+
+	/*
+	 * Runs the jobs, writing a line to the report for each job as it ends, then the summary of the jobs
+	 */
+	public void run(List<Job> jobs, PrintWriter report)
+	{
+		ExecutorCompletionService<Result> completion = new ExecutorCompletionService<Result>(pool);
+		Statistics statistics = new Statistics();
+
+		for(final Job job : jobs)
+		{
+			completion.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return convert(job);
+				}
+			});
+		}
+
+		for(int i = 0; i < jobs.size(); i++)
+		{
+			Result result;
+
+			try
+			{
+				result = completion.take().get();
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				report.println("Interrupted, " + (jobs.size() - i) + " jobs left");
+				break;
+			}
+			catch(ExecutionException ex)     //convert reports every failure as a result
+			{
+				throw new IllegalStateException("A conversion job failed", ex.getCause());
+			}
+
+			statistics.add(result);
+			total.add(result);
+			report.println(result);
+			report.flush();
+		}
+
+		report.println(statistics.summary());
+		report.flush();
+	}
+
+	private Result convert(Job job)
+	{
+		long start = System.nanoTime();
+		Alarm alarm = timeoutMillis > 0 ? new Alarm() : null;
+		NSA input = null;
+		NSA nsa = null;
+
+		try
+		{
+			input = read(job);
+			nsa = input;
+
+			if(sccAware)
+				nsa.enableSccAware();
+
+			if(prune)
+				nsa = nsa.prune();
+
+			DNAExplorer explorer = new DNAExplorer(nsa);
+
+			explorer.explore();
+
+			if(minimize)
+				explorer.minimize();
+
+			write(nsa, explorer, Paths.get(job.output));
+
+			return new Result(job, Status.OK, explorer.getStates().size(), null, System.nanoTime() - start);
+		}
+		catch(Throwable ex)     //Interrupted file operations fail too, the alarm tells a timeout. Errors end only the job.
+		{
+			if(ex instanceof CancellationException || (alarm != null && alarm.hasFired()))
+				return new Result(job, Status.TIMEOUT, 0, null, System.nanoTime() - start);
+
+			return new Result(job, Status.FAILED, 0, ex.toString(), System.nanoTime() - start);
+		}
+		finally
+		{
+			if(input != null)
+				input.releaseTransitionEngine();
+
+			if(nsa != null && nsa != input)
+				nsa.releaseTransitionEngine();
+
+			if(alarm != null)
+				alarm.disarm();
+		}
+	}
+
+	/*
+	 * The NSA of the job
+	 */
+	NSA read(Job job) throws IOException
+	{
+		return new NSA(job.input);
+	}
+
+	private void write(NSA nsa, DNAExplorer explorer, Path path) throws IOException
+	{
+		if(binary)
+		{
+			try (OutputStream out = Files.newOutputStream(path))
+			{
+				nsa.convertToBinaryDNA(explorer, withTrees, out);
+			}
+		}
+		else
+		{
+			try (Writer out = Files.newBufferedWriter(path))
+			{
+				nsa.convertToDNA(explorer, out);
+			}
+		}
+	}
+
+	/*
+	 * A Unix socket at the path that only the user running the server may connect to (see serve). The socket is
+	 * bound in a new directory only the user can enter, restricted to the user, then moved to the path, so no
+	 * other user can connect in between. The path must not exist.
+	 */
+	public static ServerSocketChannel openSocket(Path path) throws IOException
+	{
+		path = path.toAbsolutePath();
+
+		if(Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+			throw new FileAlreadyExistsException(path.toString());
+
+		Path directory = Files.createTempDirectory(path.getParent(), ".dnabatch",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		Path bound = directory.resolve("socket");
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+
+		try
+		{
+			server.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException | RuntimeException ex)
+		{
+			server.close();
+			Files.deleteIfExists(bound);
+			throw ex;
+		}
+		finally
+		{
+			Files.delete(directory);
+		}
+
+		return server;
+	}
+
+	/*
+	 * Serves the clients of the channel, a Unix socket opened by openSocket, until a client asks for a shutdown.
+	 * Jobs write to any path the server may write to, so the server takes no TCP connections: on a loopback port any
+	 * local user could submit jobs.
+	 * A client writes its jobs, one per line as for readJobs, and closes its side of the connection; it is then
+	 * answered as by run. Instead of jobs, a client may send "stats" for the summary of all the jobs served so far,
+	 * or "shutdown" to stop the server once the jobs running end.
+	 */
+	public void serve(ServerSocketChannel server) throws IOException
+	{
+		if(!(server.getLocalAddress() instanceof UnixDomainSocketAddress))
+			throw new IllegalArgumentException("Jobs are served on a Unix socket only, not on " + server.getLocalAddress());
+
+		while(server.isOpen())
+		{
+			final SocketChannel client;
+
+			try
+			{
+				client = server.accept();
+			}
+			catch(ClosedChannelException ex)           //Closed by a shutdown
+			{
+				break;
+			}
+
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serveClient(server, client);
+				}
+			}, "DNA batch connection");
+
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	/*
+	 * The whole request is read before answering: the streams of a channel cannot read and write at once
+	 */
+	private void serveClient(ServerSocketChannel server, SocketChannel client)
+	{
+		try (SocketChannel channel = client)
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+					StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+			List<Job> jobs = new ArrayList<Job>();
+			boolean shutdown = false;
+			String line;
+
+			while((line = in.readLine()) != null)
+			{
+				line = line.trim();
+
+				if(line.equals("stats"))
+					out.println(total.summary());
+				else if(line.equals("shutdown"))
+					shutdown = true;
+				else if(!line.isEmpty() && !line.startsWith("#"))
+				{
+					try
+					{
+						jobs.add(parseJob(line));
+					}
+					catch(IllegalArgumentException ex)
+					{
+						out.println("failed " + line + ": " + ex.getMessage());
+					}
+				}
+			}
+
+			if(!jobs.isEmpty())
+				run(jobs, out);
+
+			out.flush();
+
+			if(shutdown)
+				server.close();
+		}
+		catch(IOException ex)
+		{
+			System.err.println("DNA batch connection failed: " + ex);
+		}
+	}
+
+	/*
+	 * Waits for the jobs submitted to end, and stops the threads
+	 */
+	public void close()
+	{
+		pool.shutdown();
+
+		try
+		{
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		timer.shutdownNow();
+	}
+
+}
@@ -0,0 +1,374 @@
+package automata.nsa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/*
+ * A checkpoint of a DNA exploration, so that an interrupted exploration can be resumed (see DNAExplorer.setCheckpoint
+ * and DNAExplorer.resume). The explored states are a worklist in the order of their ids, so the exploration is
+ * described by the states found so far and the transitions of the states expanded so far (the ones before the
+ * frontier).
+ *
+ * The file only grows: each checkpoint appends a segment with the states found and the transitions computed since
+ * the previous one. The segment is copied from the exploration at once, and written and forced to disk by
+ * a background thread while the exploration goes on. A segment ends with a checksum, and a segment cut short
+ * by a crash is dropped on resume.
+ *
+ * All numbers are big endian. The layout is:
+ *   header    MAGIC, the NSA fingerprint (long), letter class count
+ *   segments  SEGMENT, first new state, new state count, first expanded state, expanded state count,
+ *             per new state the length and bytes of its code (see DNATreeCodec), per expanded state and letter
+ *             class its target and k, then the CRC32 of the segment
+ */
+public class DNACheckpoint implements Closeable {
+
+	/*
+	 * "DNC" and the format version
+	 */
+	public static final int MAGIC = 0x444E4301;
+
+	private static final int SEGMENT = 0x53454731;
+
+	private static final int HEADER_SIZE = 16;
+
+	/*
+	 * Longer codes in a segment are taken as garbage
+	 */
+	private static final int MAX_CODE_LENGTH = 1 << 26;
+
+	private Path path;
+
+	private NSA nsa;
+
+	private FileChannel channel;
+
+	/*
+	 * The states and expanded states up to which the file is written (or being written), or read while resuming
+	 */
+	private int writtenStates;
+
+	private int writtenExpanded;
+
+	private ExecutorService writer;
+
+	/*
+	 * The segment being written, if any
+	 */
+	private Future<Void> pending;
+
+	/*
+	 * A checkpoint kept in the file of the path, for the DNA of the NSA
+	 */
+	public DNACheckpoint(Path path, NSA nsa)
+	{
+		this.path = path;
+		this.nsa = nsa;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DNA checkpoint writer");
+
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+	}
+
+	public boolean exists() {return Files.exists(path);}
+
+	/*
+	 * Reads the checkpoint into the empty tables, but for the initial tree, which the store must hold already.
+	 * Returns the number of expanded states. Checkpoints are appended to the file from then on.
+	 */
+	int resume(DNAStateStore states, DNATransitionTable transitions) throws IOException
+	{
+		long validLength = HEADER_SIZE;
+
+		writtenStates = 0;
+		writtenExpanded = 0;
+
+		if(Files.size(path) < HEADER_SIZE)           //Cut short before any checkpoint, the file is written anew
+			return 0;
+
+		try (InputStream stream = Files.newInputStream(path))
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a DNA checkpoint: " + path);
+
+			if(in.readLong() != nsa.getFingerprint() || in.readInt() != transitions.getClassCount())
+				throw new IOException("The checkpoint " + path + " is of another NSA");
+
+			for(long length = readSegment(in, states, transitions); length > 0; length = readSegment(in, states, transitions))
+			{
+				validLength += length;
+			}
+		}
+		catch(EOFException ex)
+		{
+			//A segment cut short, the checkpoint ends before it
+		}
+
+		channel = FileChannel.open(path, StandardOpenOption.WRITE);
+		channel.truncate(validLength);
+		channel.position(validLength);
+
+		return writtenExpanded;
+	}
+
+	/*
+	 * Reads a segment into the tables. Returns its length in bytes, or -1 at the end of the checkpoint.
+	 * The segment is only used once its checksum is checked.
+	 */
+	private long readSegment(DataInputStream in, DNAStateStore states, DNATransitionTable transitions) throws IOException
+	{
+		int tag;
+
+		try
+		{
+			tag = in.readInt();
+		}
+		catch(EOFException ex)
+		{
+			return -1;
+		}
+
+		CRC32 crc = new CRC32();
+		int[] counts = new int[4];       //First new state, new states, first expanded state, expanded states
+
+		for(int i = 0; i < counts.length; i++)
+		{
+			counts[i] = in.readInt();
+			updateInt(crc, counts[i]);
+		}
+
+		if(tag != SEGMENT || counts[0] != writtenStates || counts[2] != writtenExpanded || counts[1] < 0 || counts[3] < 0
+				|| counts[2] + counts[3] > counts[0] + counts[1])
+			return -1;
+
+		long length = 4 + 4 * counts.length;
+		byte[][] codes = new byte[counts[1]][];
+
+		for(int i = 0; i < codes.length; i++)
+		{
+			int codeLength = in.readInt();
+
+			if(codeLength <= 0 || codeLength > MAX_CODE_LENGTH)
+				return -1;
+
+			codes[i] = new byte[codeLength];
+			in.readFully(codes[i]);
+			updateInt(crc, codeLength);
+			crc.update(codes[i]);
+			length += 4 + codeLength;
+		}
+
+		int classCount = transitions.getClassCount();
+		int[] values = new int[2 * counts[3] * classCount];
+
+		for(int i = 0; i < values.length; i++)
+		{
+			values[i] = in.readInt();
+			updateInt(crc, values[i]);
+		}
+
+		length += 4L * values.length + 4;
+
+		if(in.readInt() != (int) crc.getValue())
+			return -1;
+
+		for(int i = 0; i < codes.length; i++)
+		{
+			DNATree tree = new DNATree(nsa, codes[i]);
+			int id = counts[0] + i;
+
+			if(id == 0 ? !tree.equals(states.get(0)) : states.add(tree) != id)
+				throw new IOException("Corrupt DNA checkpoint, state " + id + " does not match: " + path);
+		}
+
+		transitions.ensureCapacity(counts[2] + counts[3]);
+
+		for(int state = 0; state < counts[3]; state++)
+		{
+			for(int letterClass = 0; letterClass < classCount; letterClass++)
+			{
+				int pos = 2 * (state * classCount + letterClass);
+
+				transitions.set(counts[2] + state, transitions.getRepresentative(letterClass), values[pos], values[pos + 1]);
+			}
+		}
+
+		writtenStates = counts[0] + counts[1];
+		writtenExpanded = counts[2] + counts[3];
+
+		return length;
+	}
+
+	private static void updateInt(CRC32 crc, int value)
+	{
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+	}
+
+	/*
+	 * Appends a segment with the states and transitions not in the checkpoint yet. The states 0..expanded-1 must be
+	 * expanded. The segment is copied before returning, and written in the background; an error writing it is
+	 * thrown by the next append or by close.
+	 */
+	void append(DNAStateStore states, DNATransitionTable transitions, int expanded) throws IOException
+	{
+		waitForPending();
+
+		if(channel == null)
+		{
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			writeHeader(transitions.getClassCount());
+		}
+
+		int firstState = writtenStates;
+		int firstExpanded = writtenExpanded;
+		int classCount = transitions.getClassCount();
+		final int[] counts = {firstState, states.size() - firstState, firstExpanded, expanded - firstExpanded};
+		final byte[][] codes = new byte[counts[1]][];
+		final int[] values = new int[2 * counts[3] * classCount];
+
+		for(int i = 0; i < codes.length; i++)
+		{
+			codes[i] = states.get(firstState + i).getCode();
+		}
+
+		for(int state = firstExpanded; state < expanded; state++)
+		{
+			for(int letterClass = 0; letterClass < classCount; letterClass++)
+			{
+				int pos = 2 * ((state - firstExpanded) * classCount + letterClass);
+				int letter = transitions.getRepresentative(letterClass);
+
+				values[pos] = transitions.getTarget(state, letter);
+				values[pos + 1] = transitions.getK(state, letter);
+			}
+		}
+
+		writtenStates = states.size();
+		writtenExpanded = expanded;
+
+		pending = writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				writeSegment(counts, codes, values);
+				return null;
+			}
+		});
+	}
+
+	private void writeHeader(int classCount) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+
+		out.writeInt(MAGIC);
+		out.writeLong(nsa.getFingerprint());
+		out.writeInt(classCount);
+		out.flush();
+	}
+
+	private void writeSegment(int[] counts, byte[][] codes, int[] values) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+		CRC32 crc = new CRC32();
+
+		out.writeInt(SEGMENT);
+
+		for(int count : counts)
+		{
+			out.writeInt(count);
+			updateInt(crc, count);
+		}
+
+		for(byte[] code : codes)
+		{
+			out.writeInt(code.length);
+			out.write(code);
+			updateInt(crc, code.length);
+			crc.update(code);
+		}
+
+		for(int value : values)
+		{
+			out.writeInt(value);
+			updateInt(crc, value);
+		}
+
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		channel.force(false);
+	}
+
+	private void waitForPending() throws IOException
+	{
+		if(pending == null)
+			return;
+
+		try
+		{
+			pending.get();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing the checkpoint " + path, ex);
+		}
+		catch(ExecutionException ex)
+		{
+			throw new IOException("Failed writing the checkpoint " + path, ex.getCause());
+		}
+		finally
+		{
+			pending = null;
+		}
+	}
+
+	/*
+	 * Waits for the last segment to be written, and closes the file
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			waitForPending();
+		}
+		finally
+		{
+			writer.shutdown();
+
+			if(channel != null)
+				channel.close();
+
+			channel = null;
+		}
+	}
+
+}
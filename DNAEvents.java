@@ -0,0 +1,83 @@
+package automata.nsa;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * JDK Flight Recorder events of the conversion. They cost next to nothing when no recording is running.
+ * Record with -XX:StartFlightRecording, the events are under the category "NSA to DNA".
+ */
+final class DNAEvents {
+
+	private DNAEvents() {}
+
+	@Name("automata.nsa.Parse")
+	@Label("NSA Parse")
+	@Category("NSA to DNA")
+	static final class ParseEvent extends Event
+	{
+		@Label("Input Size")
+		@DataAmount
+		long bytes;
+
+		@Label("States")
+		int states;
+
+		@Label("Letters")
+		int letters;
+
+		@Label("Transitions")
+		int transitions;
+	}
+
+	@Name("automata.nsa.Exploration")
+	@Label("DNA Exploration")
+	@Category("NSA to DNA")
+	static final class ExplorationEvent extends Event
+	{
+		@Label("Threads")
+		int threads;
+
+		@Label("States")
+		int states;
+
+		@Label("Transitions")
+		@Description("Transitions computed, one per state and class of letters with the same transitions")
+		long transitions;
+	}
+
+	/*
+	 * One breadth first level of the exploration
+	 */
+	@Name("automata.nsa.ExplorationLevel")
+	@Label("DNA Exploration Level")
+	@Category("NSA to DNA")
+	static final class LevelEvent extends Event
+	{
+		@Label("Level")
+		int level;
+
+		@Label("Frontier")
+		int frontier;
+
+		@Label("New States")
+		int newStates;
+	}
+
+	@Name("automata.nsa.Output")
+	@Label("DNA Output")
+	@Category("NSA to DNA")
+	static final class OutputEvent extends Event
+	{
+		@Label("Format")
+		String format;
+
+		@Label("States")
+		int states;
+	}
+
+}
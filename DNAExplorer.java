@@ -0,0 +1,421 @@
+package automata.nsa;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import automata.nsa.DNATree.DNATransition;
+
+/*
+ * Explores the DNA of an NSA breadth first, starting at the initial tree.
+ * The state table doubles as the worklist: states are expanded in the order of their ids,
+ * so every transition of every tree is computed exactly once and kept in the transition table.
+ *
+ * With more than one thread, each BFS level (frontier) is split across a ForkJoinPool, and the workers
+ * share the concurrent state table. The ids are then renumbered to the order the sequential run gives them,
+ * so the result does not depend on the number of threads.
+ *
+ * A long exploration can be checkpointed, and resumed from its checkpoint after it was interrupted (see DNACheckpoint).
+ */
+public class DNAExplorer {
+
+	/*
+	 * Frontier ranges up to this number of trees are expanded by a single task
+	 */
+	private static final int TASK_SIZE = 8;
+
+	private DNAStateStore states;
+
+	private DNATransitionTable transitions;
+
+	/*
+	 * The class of each letter, see NSA.getLetterClasses. Transitions are computed for the first letter of each class.
+	 */
+	private int[] letterClasses;
+
+	private int threads;
+
+	/*
+	 * The states expanded before explore, when resumed from a checkpoint
+	 */
+	private int resumed;
+
+	private DNACheckpoint checkpoint;
+
+	private long checkpointNanos;
+
+	private long lastCheckpoint;
+
+	/*
+	 * The DNA of the NSA before an edit, if its transitions are reused
+	 */
+	private DNAReuse reuse;
+
+	private boolean minimized;
+
+	public DNAExplorer(NSA nsa)
+	{
+		this(nsa, 1);
+	}
+
+	public DNAExplorer(NSA nsa, int threads)
+	{
+		this(nsa, threads, new DNAStateTable());
+	}
+
+	/*
+	 * An explorer keeping the states in the given store, which must be empty
+	 */
+	public DNAExplorer(NSA nsa, int threads, DNAStateStore states)
+	{
+		this.states = states;
+		this.states.add(new DNATree(nsa));
+		this.letterClasses = nsa.getLetterClasses();
+		this.transitions = new DNATransitionTable(letterClasses, states instanceof DNAOffHeapStateStore);
+		this.threads = threads;
+	}
+
+	/*
+	 * Explores every tree reachable from the initial tree. An interrupted exploration stops, throwing
+	 * a CancellationException (the interrupt is left set).
+	 */
+	public void explore()
+	{
+		DNAEvents.ExplorationEvent event = new DNAEvents.ExplorationEvent();
+		long start = System.nanoTime();
+
+		event.begin();
+
+		lastCheckpoint = System.nanoTime();
+
+		if(threads > 1)
+			exploreParallel();
+		else
+			exploreSequential();
+
+		if(checkpoint != null)
+			checkpoint(states.size());
+
+		if(threads > 1 || resumed > 0)          //A resumed exploration may have been parallel
+			renumber();
+
+		event.end();
+
+		long transitionCount = (long) states.size() * transitions.getClassCount();     //One computed per letter class
+
+		if(event.shouldCommit())
+		{
+			event.threads = threads;
+			event.states = states.size();
+			event.transitions = transitionCount;
+			event.commit();
+		}
+
+		if(DNAMetrics.isEnabled())
+			DNAMetrics.recordExploration(states.size(), transitionCount, System.nanoTime() - start);
+	}
+
+	private void exploreSequential()
+	{
+		int level = 0;
+		int levelStart = resumed;
+		int levelEnd = states.size();
+		DNAEvents.LevelEvent event = new DNAEvents.LevelEvent();
+
+		event.begin();
+
+		for(int id = resumed; id < states.size(); id++)
+		{
+			checkInterrupted();
+			expand(id, states.get(id));
+			checkpointIfDue(id + 1);
+
+			if(id + 1 == levelEnd)         //The states added while expanding a level make the next one
+			{
+				commitLevel(event, level++, levelEnd - levelStart, states.size() - levelEnd);
+
+				levelStart = levelEnd;
+				levelEnd = states.size();
+				event = new DNAEvents.LevelEvent();
+				event.begin();
+			}
+		}
+	}
+
+	private static void checkInterrupted()
+	{
+		if(Thread.currentThread().isInterrupted())
+			throw new CancellationException("The DNA exploration was interrupted");
+	}
+
+	private static void commitLevel(DNAEvents.LevelEvent event, int level, int frontier, int newStates)
+	{
+		event.end();
+
+		if(event.shouldCommit())
+		{
+			event.level = level;
+			event.frontier = frontier;
+			event.newStates = newStates;
+			event.commit();
+		}
+	}
+
+	/*
+	 * Computes all the transitions of the tree with the given id
+	 */
+	private void expand(int id, DNATree tree)
+	{
+		int previousState = reuse == null ? -1 : reuse.find(id, tree);
+
+		for(int letterClass = 0; letterClass < transitions.getClassCount(); letterClass++)
+		{
+			int letter = transitions.getRepresentative(letterClass);
+			int target = reuse == null ? -1 : reuse.successor(previousState, letter, states);
+
+			if(target >= 0)
+			{
+				transitions.set(id, letter, target, reuse.k(previousState, letter));
+				continue;
+			}
+
+			DNATransition trans = tree.transition(letter);
+
+			transitions.set(id, letter, states.add(trans.resultState), trans.k);
+		}
+	}
+
+	private void exploreParallel()
+	{
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try
+		{
+			int done = resumed;
+			int level = 0;
+
+			while(done < states.size())
+			{
+				checkInterrupted();
+
+				DNAEvents.LevelEvent event = new DNAEvents.LevelEvent();
+				int end = states.size();
+
+				event.begin();
+				DNATree[] frontier = new DNATree[end - done];
+
+				for(int id = done; id < end; id++)
+				{
+					frontier[id - done] = states.get(id);
+				}
+
+				transitions.ensureCapacity(end);
+				pool.invoke(new FrontierTask(frontier, done, 0, frontier.length));
+				commitLevel(event, level++, end - done, states.size() - end);
+
+				done = end;
+				checkpointIfDue(done);
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Checkpoints the exploration every given number of milliseconds, starting with the next call to explore.
+	 * The checkpoint is written anew, unless the exploration was resumed from it.
+	 */
+	public void setCheckpoint(DNACheckpoint checkpoint, long intervalMillis)
+	{
+		this.checkpoint = checkpoint;
+		this.checkpointNanos = intervalMillis * 1000000;
+	}
+
+	/*
+	 * Takes the transitions the edit of the NSA leaves unchanged from its previous DNA, instead of computing them.
+	 * Must be called before explore. The result is the same as without.
+	 */
+	public void setReuse(DNAReuse reuse) {this.reuse = reuse;}
+
+	/*
+	 * Continues the exploration saved in the checkpoint, instead of starting from the initial tree.
+	 * Must be called before explore. Returns the number of states already expanded.
+	 */
+	public int resume(DNACheckpoint checkpoint) throws IOException
+	{
+		if(states.size() != 1)
+			throw new IllegalStateException("Only an exploration not started yet can be resumed");
+
+		resumed = checkpoint.resume(states, transitions);
+
+		return resumed;
+	}
+
+	private void checkpointIfDue(int expanded)
+	{
+		if(checkpoint != null && System.nanoTime() - lastCheckpoint >= checkpointNanos)
+			checkpoint(expanded);
+	}
+
+	/*
+	 * Saves the states found so far, of which the first expanded ones are expanded
+	 */
+	private void checkpoint(int expanded)
+	{
+		try
+		{
+			checkpoint.append(states, transitions, expanded);
+		}
+		catch(IOException ex)
+		{
+			throw new UncheckedIOException(ex);
+		}
+
+		lastCheckpoint = System.nanoTime();
+	}
+
+	/*
+	 * Renumbers the states in the order a sequential breadth first exploration discovers them
+	 */
+	private void renumber()
+	{
+		int[] newIds = new int[states.size()];
+		int[] oldIds = new int[states.size()];
+
+		Arrays.fill(newIds, -1);
+		newIds[0] = 0;
+
+		int count = 1;
+
+		for(int newId = 0; newId < count; newId++)
+		{
+			for(int letterClass = 0; letterClass < transitions.getClassCount(); letterClass++)
+			{
+				int target = transitions.getTarget(oldIds[newId], transitions.getRepresentative(letterClass));
+
+				if(newIds[target] < 0)
+				{
+					newIds[target] = count;
+					oldIds[count] = target;
+					count++;
+				}
+			}
+		}
+
+		DNATransitionTable renumberedTransitions = new DNATransitionTable(letterClasses, transitions.isOffHeap());
+
+		renumberedTransitions.ensureCapacity(count);
+		states.reorder(oldIds);
+
+		for(int newId = 0; newId < count; newId++)
+		{
+			for(int letterClass = 0; letterClass < transitions.getClassCount(); letterClass++)
+			{
+				int letter = transitions.getRepresentative(letterClass);
+
+				renumberedTransitions.set(newId, letter, newIds[transitions.getTarget(oldIds[newId], letter)],
+						transitions.getK(oldIds[newId], letter));
+			}
+		}
+
+		transitions = renumberedTransitions;
+	}
+
+	/*
+	 * Replaces the explored DNA by its minimal equivalent (see DNAMinimizer). Each state of the minimal DNA is
+	 * labelled by the first explored tree it stands for, so the ids keep the breadth first order and the initial
+	 * tree stays id 0. The minimal states are kept on the heap, whatever the store of the exploration.
+	 */
+	public void minimize()
+	{
+		DNAMinimizer minimizer = new DNAMinimizer(transitions, states.size());
+		int[] newIds = new int[minimizer.getBlockCount()];
+		int[] oldIds = new int[newIds.length];
+		int count = 0;
+
+		Arrays.fill(newIds, -1);
+
+		for(int id = 0; id < states.size(); id++)
+		{
+			int block = minimizer.getBlock(id);
+
+			if(newIds[block] < 0)
+			{
+				newIds[block] = count;
+				oldIds[count++] = id;
+			}
+		}
+
+		DNAStateStore minimalStates = new DNAStateTable();
+		DNATransitionTable minimalTransitions = new DNATransitionTable(letterClasses);
+
+		minimalTransitions.ensureCapacity(count);
+
+		for(int newId = 0; newId < count; newId++)
+		{
+			minimalStates.add(states.get(oldIds[newId]));
+
+			for(int letterClass = 0; letterClass < transitions.getClassCount(); letterClass++)
+			{
+				int letter = transitions.getRepresentative(letterClass);
+
+				minimalTransitions.set(newId, letter, newIds[minimizer.getBlock(transitions.getTarget(oldIds[newId], letter))],
+						transitions.getK(oldIds[newId], letter));
+			}
+		}
+
+		states = minimalStates;
+		transitions = minimalTransitions;
+		minimized = true;
+	}
+
+	public DNAStateStore getStates() {return states;}
+
+	public DNATransitionTable getTransitions() {return transitions;}
+
+	public boolean isMinimized() {return minimized;}
+
+	/*
+	 * Expands a range of the frontier, splitting it in halves while it is large
+	 */
+	private class FrontierTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private DNATree[] frontier;
+		private int firstId;
+		private int from;
+		private int to;
+
+		private FrontierTask(DNATree[] frontier, int firstId, int from, int to)
+		{
+			this.frontier = frontier;
+			this.firstId = firstId;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from <= TASK_SIZE)
+			{
+				for(int i = from; i < to; i++)
+				{
+					expand(firstId + i, frontier[i]);
+				}
+			}
+			else
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new FrontierTask(frontier, firstId, from, middle), new FrontierTask(frontier, firstId, middle, to));
+			}
+		}
+	}
+
+}
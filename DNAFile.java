@@ -0,0 +1,239 @@
+package automata.nsa;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * A DNA in the binary format, read through a memory mapping of the file: nothing is parsed or loaded up front,
+ * every query reads the mapped table directly. The file is written by NSA.convertToBinaryDNA.
+ *
+ * All numbers are big endian ints. The layout is:
+ *   header        MAGIC, flags (FLAG_TREES, FLAG_MINIMIZED), state count, letter count, NSA state count, N',
+ *                 tree code width, length in bytes of the symbol table
+ *   symbol table  per letter: length in bytes and the UTF-8 bytes of its symbol, padded with zeros to 4 bytes
+ *   transitions   per state and letter (state*letterCount + letter): target state and k
+ *   trees         only with FLAG_TREES: stateCount+1 offsets into the codes, then the codes (see DNATreeCodec)
+ * State 0 is the initial tree, the other states are numbered as in the graphviz output.
+ */
+public class DNAFile implements Closeable {
+
+	/*
+	 * "DNA" and the format version
+	 */
+	public static final int MAGIC = 0x444E4101;
+
+	public static final int FLAG_TREES = 1;
+
+	/*
+	 * The DNA was minimized: the tree of a state is only one of the trees it stands for
+	 */
+	public static final int FLAG_MINIMIZED = 2;
+
+	private static final int HEADER_SIZE = 32;
+
+	private ByteBuffer buffer;
+
+	private int flags;
+	private int stateCount;
+	private int letterCount;
+	private int nsaStateCount;
+	private int nPrime;
+
+	private String[] symbols;
+
+	private int transitionsOffset;
+
+	/*
+	 * Start of the tree offsets, and of the codes they point into
+	 */
+	private int treesOffset;
+	private int codesOffset;
+
+	/*
+	 * Maps the file and reads its header and symbol table
+	 */
+	public DNAFile(Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("DNA file too large to map: " + path);
+
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());  //The mapping outlives the channel
+		}
+
+		if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a binary DNA file: " + path);
+
+		flags = buffer.getInt(4);
+		stateCount = buffer.getInt(8);
+		letterCount = buffer.getInt(12);
+		nsaStateCount = buffer.getInt(16);
+		nPrime = buffer.getInt(20);
+
+		int symbolTableLength = buffer.getInt(28);
+		symbols = new String[letterCount];
+
+		int pos = HEADER_SIZE;
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			byte[] bytes = new byte[buffer.getInt(pos)];
+
+			buffer.get(pos + 4, bytes);
+			symbols[letter] = new String(bytes, StandardCharsets.UTF_8);
+			pos += 4 + bytes.length;
+		}
+
+		transitionsOffset = HEADER_SIZE + symbolTableLength;
+		treesOffset = transitionsOffset + 8 * stateCount * letterCount;
+		codesOffset = treesOffset + 4 * (stateCount + 1);
+
+		if(buffer.limit() < ((flags & FLAG_TREES) != 0 ? codesOffset : treesOffset))
+			throw new IOException("Truncated binary DNA file: " + path);
+	}
+
+	public int getStateCount() {return stateCount;}
+
+	public int getLetterCount() {return letterCount;}
+
+	public String getSymbol(int letter) {return symbols[letter];}
+
+	/*
+	 * The letter of a symbol, or -1 if it is not in the alphabet
+	 */
+	public int getLetter(String symbol)
+	{
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			if(symbols[letter].equals(symbol))
+				return letter;
+		}
+
+		return -1;
+	}
+
+	public int successor(int state, int letter)
+	{
+		return buffer.getInt(transitionsOffset + 8 * (state * letterCount + letter));
+	}
+
+	public int k(int state, int letter)
+	{
+		return buffer.getInt(transitionsOffset + 8 * (state * letterCount + letter) + 4);
+	}
+
+	public boolean hasTrees() {return (flags & FLAG_TREES) != 0;}
+
+	public boolean isMinimized() {return (flags & FLAG_MINIMIZED) != 0;}
+
+	/*
+	 * The tree of the state, for the NSA the DNA was converted from
+	 */
+	public DNATree getTree(NSA nsa, int state)
+	{
+		if(!hasTrees())
+			throw new IllegalStateException("The DNA file holds no trees");
+
+		if(nsa.getStateCount() != nsaStateCount || nsa.getNPrime() != nPrime)
+			throw new IllegalArgumentException("The DNA file was not converted from this NSA");
+
+		int from = buffer.getInt(treesOffset + 4 * state);
+		byte[] code = new byte[buffer.getInt(treesOffset + 4 * (state + 1)) - from];
+
+		buffer.get(codesOffset + from, code);
+
+		return new DNATree(nsa, code);
+	}
+
+	/*
+	 * Drops the mapping. It is unmapped by the garbage collector, once the buffer is no longer reachable.
+	 */
+	@Override
+	public void close()
+	{
+		buffer = null;
+	}
+
+	/*
+	 * Writes the DNA with the given flags. order holds the ids of the states (in the tables) by their number in the file.
+	 */
+	static void write(NSA nsa, int[] order, DNAStateStore states, DNATransitionTable transitions, int flags,
+			OutputStream stream) throws IOException
+	{
+		boolean withTrees = (flags & FLAG_TREES) != 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		int letterCount = nsa.getAlphabetSize();
+		byte[][] symbols = new byte[letterCount][];
+		int symbolTableLength = 0;
+
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			symbols[letter] = nsa.getSymbol(letter).getBytes(StandardCharsets.UTF_8);
+			symbolTableLength += 4 + symbols[letter].length;
+		}
+
+		int padding = -symbolTableLength & 3;
+
+		out.writeInt(MAGIC);
+		out.writeInt(flags);
+		out.writeInt(order.length);
+		out.writeInt(letterCount);
+		out.writeInt(nsa.getStateCount());
+		out.writeInt(nsa.getNPrime());
+		out.writeInt(nsa.getTreeCodec().getWidth());
+		out.writeInt(symbolTableLength + padding);
+
+		for(byte[] symbol : symbols)
+		{
+			out.writeInt(symbol.length);
+			out.write(symbol);
+		}
+
+		out.write(new byte[padding]);
+
+		int[] numbers = new int[order.length];
+
+		for(int number = 0; number < order.length; number++)
+		{
+			numbers[order[number]] = number;
+		}
+
+		for(int id : order)
+		{
+			for(int letter = 0; letter < letterCount; letter++)
+			{
+				out.writeInt(numbers[transitions.getTarget(id, letter)]);
+				out.writeInt(transitions.getK(id, letter));
+			}
+		}
+
+		if(withTrees)
+		{
+			int offset = 0;
+
+			for(int id : order)
+			{
+				out.writeInt(offset);
+				offset += states.get(id).getEncodedLength();
+			}
+
+			out.writeInt(offset);
+
+			for(int id : order)
+			{
+				out.write(states.get(id).getCode());
+			}
+		}
+
+		out.flush();
+	}
+
+}
@@ -0,0 +1,216 @@
+package automata.nsa;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * In-process metrics of the conversion: time per stage of the DNA transitions, tree sizes, state store hits and
+ * misses, and totals of the exploration and output. Metrics are off by default, and while they are off
+ * the hot paths only read the enabled flag. The same figures (but the per transition ones) are also recorded as
+ * JFR events, see DNAEvents.
+ *
+ * Each transition engine counts its own transitions (Stages), so the counting takes no locks. The counts are
+ * summed when the summary is printed, which should be once the exploration is over. The counts of an engine
+ * dropped by its NSA (see NSA.releaseTransitionEngine) are added to the retired counts.
+ */
+public final class DNAMetrics {
+
+	static final int DECODE = 0, LOAD = 1, SPAWN = 2, SENIORITY = 3, UNIQUE = 4, ENCODE = 5;
+
+	private static final String[] STAGE_NAMES = {"decode", "load", "spawn", "seniority", "unique", "encode"};
+
+	private static volatile boolean enabled;
+
+	private static Queue<Stages> allStages = new ConcurrentLinkedQueue<Stages>();
+
+	private static Stages retired = new Stages(0);
+
+	private static LongAdder hits = new LongAdder();
+	private static LongAdder misses = new LongAdder();
+
+	private static volatile long exploredStates;
+	private static volatile long exploredTransitions;
+	private static volatile long explorationNanos;
+	private static volatile long outputNanos;
+
+	private DNAMetrics() {}
+
+	/*
+	 * Turns the metrics on, starting from zero. The engines keep their counters, which are reset, so this should
+	 * be called while no conversion runs.
+	 */
+	public static synchronized void enable()
+	{
+		for(Stages stages : allStages)
+		{
+			stages.reset();
+		}
+
+		retired.reset();
+		hits.reset();
+		misses.reset();
+		exploredStates = 0;
+		exploredTransitions = 0;
+		explorationNanos = 0;
+		outputNanos = 0;
+		enabled = true;
+	}
+
+	public static void disable() {enabled = false;}
+
+	public static boolean isEnabled() {return enabled;}
+
+	/*
+	 * The counters of one transition engine. Not thread safe, like the engine.
+	 */
+	static final class Stages
+	{
+		private long[] nanos = new long[STAGE_NAMES.length];
+
+		private long transitions;
+
+		/*
+		 * Transitions by the node count of the resulting tree
+		 */
+		private long[] treeSizes;
+
+		private Stages(int maxNodes)
+		{
+			treeSizes = new long[maxNodes + 1];
+		}
+
+		/*
+		 * Adds the time since the given time to the stage. Returns the current time.
+		 */
+		long lap(int stage, long since)
+		{
+			long now = System.nanoTime();
+
+			nanos[stage] += now - since;
+
+			return now;
+		}
+
+		void countTransition(int nodes)
+		{
+			transitions++;
+			treeSizes[nodes]++;
+		}
+
+		private void reset()
+		{
+			Arrays.fill(nanos, 0);
+			transitions = 0;
+			Arrays.fill(treeSizes, 0);
+		}
+
+		/*
+		 * Adds the counts of the other stages to these
+		 */
+		private void add(Stages other)
+		{
+			transitions += other.transitions;
+
+			for(int stage = 0; stage < nanos.length; stage++)
+			{
+				nanos[stage] += other.nanos[stage];
+			}
+
+			if(treeSizes.length < other.treeSizes.length)
+				treeSizes = Arrays.copyOf(treeSizes, other.treeSizes.length);
+
+			for(int nodes = 0; nodes < other.treeSizes.length; nodes++)
+			{
+				treeSizes[nodes] += other.treeSizes[nodes];
+			}
+		}
+	}
+
+	/*
+	 * New counters for a transition engine, whose trees have at most maxNodes nodes
+	 */
+	static Stages newStages(int maxNodes)
+	{
+		Stages stages = new Stages(maxNodes);
+
+		allStages.add(stages);
+
+		return stages;
+	}
+
+	/*
+	 * Adds the counts of an engine no longer used to the retired counts, and stops tracking it
+	 */
+	static synchronized void retire(Stages stages)
+	{
+		if(allStages.remove(stages))
+			retired.add(stages);
+	}
+
+	static void countLookup(boolean hit)
+	{
+		(hit ? hits : misses).increment();
+	}
+
+	static synchronized void recordExploration(long states, long transitions, long nanos)
+	{
+		exploredStates += states;
+		exploredTransitions += transitions;
+		explorationNanos += nanos;
+	}
+
+	static synchronized void recordOutput(long nanos)
+	{
+		outputNanos += nanos;
+	}
+
+	/*
+	 * Prints the summary of the metrics so far
+	 */
+	public static synchronized void printSummary(PrintStream out)
+	{
+		Stages total = new Stages(0);
+
+		total.add(retired);
+
+		for(Stages stages : allStages)
+		{
+			total.add(stages);
+		}
+
+		long[] nanos = total.nanos;
+		long transitions = total.transitions;
+		long[] treeSizes = total.treeSizes;
+
+		out.println(String.format("Exploration: %d states, %d transitions in %.1f ms (%.0f transitions/s)", exploredStates,
+				exploredTransitions, explorationNanos / 1e6, exploredTransitions / Math.max(explorationNanos / 1e9, 1e-9)));
+
+		long lookups = hits.sum() + misses.sum();
+		out.println(String.format("State store: %d hits, %d misses (%.1f%% hits)", hits.sum(), misses.sum(),
+				100.0 * hits.sum() / Math.max(lookups, 1)));
+
+		StringBuilder line = new StringBuilder("Transition stages (ns per transition):");
+
+		for(int stage = 0; stage < nanos.length; stage++)
+		{
+			line.append(String.format(" %s %.0f", STAGE_NAMES[stage], (double) nanos[stage] / Math.max(transitions, 1)));
+		}
+
+		out.println(line);
+
+		line = new StringBuilder("Tree sizes (nodes: transitions):");
+
+		for(int nodes = 0; nodes < treeSizes.length; nodes++)
+		{
+			if(treeSizes[nodes] > 0)
+				line.append(' ').append(nodes).append(": ").append(treeSizes[nodes]);
+		}
+
+		out.println(line);
+		out.println(String.format("Output: %.1f ms", outputNanos / 1e6));
+	}
+
+}
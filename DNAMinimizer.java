@@ -0,0 +1,303 @@
+package automata.nsa;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Minimizes an explored DNA by partition refinement (Hopcroft's algorithm), in O(n*|Sigma|*log n) time.
+ * Two states are merged when every word gives the same sequence of k from both of them. The acceptance of a run
+ * only depends on that sequence, so the quotient automaton accepts the same language.
+ *
+ * The states start partitioned by their k per letter, and a block is split whenever its states disagree on the
+ * block of their successors with some letter. The partition is kept as a permutation of the states where every
+ * block is a contiguous range.
+ */
+public class DNAMinimizer {
+
+	private int stateCount;
+
+	/*
+	 * The letters considered are the first letter of each class, as all the letters of a class have the same
+	 * transitions (see DNATransitionTable)
+	 */
+	private int letterCount;
+
+	private int[] letters;
+
+	/*
+	 * The states, grouped by block. Block b is elements[first[b]..end[b]-1].
+	 */
+	private int[] elements;
+
+	/*
+	 * Position of each state in elements
+	 */
+	private int[] location;
+
+	private int[] blockOf;
+
+	private int[] first;
+
+	private int[] end;
+
+	/*
+	 * While splitting: the marked states of a block are elements[first[b]..first[b]+marked[b]-1]
+	 */
+	private int[] marked;
+
+	private int blockCount;
+
+	/*
+	 * Predecessors by letter, as compressed rows: the predecessors of state q with letter c are
+	 * predecessors[c][predecessorStart[c][q]..predecessorStart[c][q+1]-1]
+	 */
+	private int[][] predecessorStart;
+
+	private int[][] predecessors;
+
+	/*
+	 * The pending splitters (block*letterCount + letter), and which pairs are pending
+	 */
+	private int[] worklist;
+
+	private int worklistSize;
+
+	private boolean[] pending;
+
+	public DNAMinimizer(DNATransitionTable transitions, int stateCount)
+	{
+		this.stateCount = stateCount;
+		this.letterCount = transitions.getClassCount();
+		this.letters = new int[letterCount];
+
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			letters[letter] = transitions.getRepresentative(letter);
+		}
+
+		elements = new int[stateCount];
+		location = new int[stateCount];
+		blockOf = new int[stateCount];
+		first = new int[stateCount];
+		end = new int[stateCount];
+		marked = new int[stateCount];
+
+		buildPredecessors(transitions);
+		partitionByKs(transitions);
+		refine();
+	}
+
+	private void buildPredecessors(DNATransitionTable transitions)
+	{
+		predecessorStart = new int[letterCount][stateCount + 1];
+		predecessors = new int[letterCount][stateCount];
+
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			int[] start = predecessorStart[letter];
+
+			for(int state = 0; state < stateCount; state++)
+			{
+				start[transitions.getTarget(state, letters[letter]) + 1]++;
+			}
+
+			for(int state = 0; state < stateCount; state++)
+			{
+				start[state + 1] += start[state];
+			}
+
+			int[] next = Arrays.copyOf(start, stateCount);
+
+			for(int state = 0; state < stateCount; state++)
+			{
+				predecessors[letter][next[transitions.getTarget(state, letters[letter])]++] = state;
+			}
+		}
+	}
+
+	/*
+	 * The initial partition: states with the same k for every letter
+	 */
+	private void partitionByKs(final DNATransitionTable transitions)
+	{
+		Integer[] order = new Integer[stateCount];
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			order[state] = state;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				for(int letter = 0; letter < letterCount; letter++)
+				{
+					int diff = Integer.compare(transitions.getK(o1, letters[letter]), transitions.getK(o2, letters[letter]));
+
+					if(diff != 0)
+						return diff;
+				}
+
+				return 0;
+			}
+		});
+
+		for(int i = 0; i < stateCount; i++)
+		{
+			int state = order[i];
+
+			if(i == 0 || !sameKs(transitions, order[i - 1], state))
+			{
+				if(blockCount > 0)
+					end[blockCount - 1] = i;
+
+				first[blockCount++] = i;
+			}
+
+			elements[i] = state;
+			location[state] = i;
+			blockOf[state] = blockCount - 1;
+		}
+
+		if(blockCount > 0)
+			end[blockCount - 1] = stateCount;
+	}
+
+	private boolean sameKs(DNATransitionTable transitions, int state1, int state2)
+	{
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			if(transitions.getK(state1, letters[letter]) != transitions.getK(state2, letters[letter]))
+				return false;
+		}
+
+		return true;
+	}
+
+	private void refine()
+	{
+		worklist = new int[Math.max(stateCount * letterCount, 1)];
+		pending = new boolean[worklist.length];
+
+		int largest = 0;
+
+		for(int block = 1; block < blockCount; block++)
+		{
+			if(end[block] - first[block] > end[largest] - first[largest])
+				largest = block;
+		}
+
+		for(int block = 0; block < blockCount; block++)        //Splitting by all the blocks but one is enough
+		{
+			if(block != largest)
+				for(int letter = 0; letter < letterCount; letter++)
+				{
+					push(block, letter);
+				}
+		}
+
+		int[] splitter = new int[stateCount];
+		int[] touched = new int[stateCount];
+
+		while(worklistSize > 0)
+		{
+			int pair = worklist[--worklistSize];
+			int block = pair / letterCount;
+			int letter = pair % letterCount;
+
+			pending[pair] = false;
+
+			int splitterSize = 0;
+
+			for(int pos = first[block]; pos < end[block]; pos++)       //Copied, as marking moves states within blocks
+			{
+				int state = elements[pos];
+
+				for(int i = predecessorStart[letter][state]; i < predecessorStart[letter][state + 1]; i++)
+				{
+					splitter[splitterSize++] = predecessors[letter][i];
+				}
+			}
+
+			int touchedCount = 0;
+
+			for(int i = 0; i < splitterSize; i++)
+			{
+				int state = splitter[i];
+				int stateBlock = blockOf[state];
+
+				if(marked[stateBlock] == 0)
+					touched[touchedCount++] = stateBlock;
+
+				int pos = first[stateBlock] + marked[stateBlock]++;
+				int other = elements[pos];
+
+				elements[location[state]] = other;
+				location[other] = location[state];
+				elements[pos] = state;
+				location[state] = pos;
+			}
+
+			for(int i = 0; i < touchedCount; i++)
+			{
+				split(touched[i]);
+			}
+		}
+	}
+
+	/*
+	 * Splits the marked states off the block, unless all of its states are marked
+	 */
+	private void split(int block)
+	{
+		int markedCount = marked[block];
+
+		marked[block] = 0;
+
+		if(markedCount == end[block] - first[block])
+			return;
+
+		int newBlock = blockCount++;
+
+		first[newBlock] = first[block];
+		end[newBlock] = first[block] + markedCount;
+		first[block] = end[newBlock];
+
+		for(int pos = first[newBlock]; pos < end[newBlock]; pos++)
+		{
+			blockOf[elements[pos]] = newBlock;
+		}
+
+		int smaller = end[newBlock] - first[newBlock] <= end[block] - first[block] ? newBlock : block;
+
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			if(pending[block * letterCount + letter])
+				push(newBlock, letter);
+			else
+				push(smaller, letter);
+		}
+	}
+
+	private void push(int block, int letter)
+	{
+		int pair = block * letterCount + letter;
+
+		if(!pending[pair])
+		{
+			pending[pair] = true;
+			worklist[worklistSize++] = pair;
+		}
+	}
+
+	/*
+	 * Number of states of the minimal DNA
+	 */
+	public int getBlockCount() {return blockCount;}
+
+	/*
+	 * The block of a state. Blocks are numbered 0..getBlockCount()-1, in no particular order.
+	 */
+	public int getBlock(int state) {return blockOf[state];}
+
+}
@@ -0,0 +1,347 @@
+package automata.nsa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A store of DNA states that keeps only the encodings of the trees (see DNATreeCodec), in direct buffers
+ * off the heap, so the heap does not grow with the number of states. get builds a new DNATree on every call.
+ *
+ * The encodings are appended to a log of segments, each one as its length followed by its bytes. The segments
+ * start at 1 MB and double up to the segment size.
+ * The position of every state in the log (segment and offset) is kept in direct chunks of longs, and the states
+ * are found through an open addressing hash table of (hash, id+1) pairs, also direct.
+ *
+ * With a spill file, only the newest segments stay in direct memory: once there are more, the oldest one is
+ * written to the file and mapped back read only, so it is paged in by the OS only when a lookup reaches it.
+ * The frontier of the exploration is always in the newest segments.
+ *
+ * All methods are synchronized.
+ */
+public class DNAOffHeapStateStore implements DNAStateStore, Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+
+	public static final int DEFAULT_RESIDENT_SEGMENTS = 4;
+
+	/*
+	 * State positions per chunk
+	 */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static final int FIRST_SEGMENT_SIZE = 1 << 20;
+
+	private NSA nsa;
+
+	private DNATreeCodec codec;
+
+	private int segmentSize;
+
+	private int residentSegments;
+
+	/*
+	 * The log, and the first segment that is still in direct memory
+	 */
+	private List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private int firstResident;
+
+	/*
+	 * Position of state id: segment index in the high int, offset in the low int
+	 */
+	private List<LongBuffer> positions = new ArrayList<LongBuffer>();
+
+	private IntBuffer table;
+	private int capacity;
+
+	private int size;
+
+	private long encodedBytes;
+
+	/*
+	 * Bytes in direct segments
+	 */
+	private long residentBytes;
+
+	private Path spillPath;
+	private FileChannel spill;
+	private long spillSize;
+
+	/*
+	 * The encoding of a stored state, read back for comparison
+	 */
+	private byte[] scratch = new byte[64];
+
+	/*
+	 * A store in direct memory only
+	 */
+	public DNAOffHeapStateStore(NSA nsa)
+	{
+		this.nsa = nsa;
+		this.codec = nsa.getTreeCodec();
+		this.segmentSize = DEFAULT_SEGMENT_SIZE;
+		this.residentSegments = Integer.MAX_VALUE;
+
+		allocateTable(1 << 16);
+	}
+
+	/*
+	 * A store spilling all but the given number of newest segments to a file, which is deleted on close
+	 */
+	public DNAOffHeapStateStore(NSA nsa, Path spillPath, int segmentSize, int residentSegments) throws IOException
+	{
+		this(nsa);
+
+		this.segmentSize = segmentSize;
+		this.residentSegments = Math.max(residentSegments, 1);
+		this.spillPath = spillPath;
+		this.spill = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	@Override
+	public synchronized int add(DNATree tree)
+	{
+		byte[] code = tree.getCode();
+		int hash = tree.hashCode();
+		int slot = find(code, hash);
+		int id = table.get(2 * slot + 1) - 1;
+
+		if(DNAMetrics.isEnabled())
+			DNAMetrics.countLookup(id >= 0);
+
+		if(id >= 0)
+			return id;
+
+		id = size++;
+		setPosition(id, append(code));
+		table.put(2 * slot, hash);
+		table.put(2 * slot + 1, id + 1);
+		encodedBytes += code.length;
+
+		if(2 * size > capacity)
+			rehash(2 * capacity);
+
+		return id;
+	}
+
+	@Override
+	public synchronized DNATree get(int id)
+	{
+		int length = read(id);         //read may grow scratch, so it comes first
+		
+		return new DNATree(nsa, Arrays.copyOf(scratch, length));
+	}
+
+	@Override
+	public synchronized int size() {return size;}
+
+	@Override
+	public synchronized long getEncodedBytes() {return encodedBytes;}
+
+	/*
+	 * Bytes taken off the heap: direct segments, positions and hash table. Spilled segments are not counted.
+	 */
+	public synchronized long getDirectBytes()
+	{
+		return residentBytes + (long) positions.size() * CHUNK_SIZE * 8
+				+ (long) capacity * 8;
+	}
+
+	@Override
+	public synchronized void reorder(int[] oldIds)
+	{
+		List<LongBuffer> reordered = new ArrayList<LongBuffer>();
+		int[] newIds = new int[size];
+
+		for(int id = 0; id < size; id++)
+		{
+			if(id % CHUNK_SIZE == 0)
+				reordered.add(ByteBuffer.allocateDirect(CHUNK_SIZE * 8).asLongBuffer());
+
+			reordered.get(id / CHUNK_SIZE).put(id % CHUNK_SIZE, getPosition(oldIds[id]));
+			newIds[oldIds[id]] = id;
+		}
+
+		positions = reordered;
+
+		for(int slot = 0; slot < capacity; slot++)
+		{
+			int id = table.get(2 * slot + 1) - 1;
+
+			if(id >= 0)
+				table.put(2 * slot + 1, newIds[id] + 1);
+		}
+	}
+
+	/*
+	 * Deletes the spill file, if any
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if(spill != null)
+		{
+			spill.close();
+			Files.deleteIfExists(spillPath);
+			spill = null;
+		}
+	}
+
+	/*
+	 * The slot of the state in the hash table, or the empty slot where it would go
+	 */
+	private int find(byte[] code, int hash)
+	{
+		int mask = capacity - 1;
+		int labelLength = codec.getLabelLength(code);
+
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask)
+		{
+			int id = table.get(2 * slot + 1) - 1;
+
+			if(id < 0)
+				return slot;
+
+			if(table.get(2 * slot) == hash)
+			{
+				int length = read(id);
+
+				if(codec.getLabelLength(scratch, length) == labelLength
+						&& Arrays.equals(scratch, 0, labelLength, code, 0, labelLength))
+					return slot;
+			}
+		}
+	}
+
+	private void rehash(int newCapacity)
+	{
+		IntBuffer old = table;
+		int oldCapacity = capacity;
+
+		allocateTable(newCapacity);
+
+		int mask = capacity - 1;
+
+		for(int oldSlot = 0; oldSlot < oldCapacity; oldSlot++)
+		{
+			int id = old.get(2 * oldSlot + 1);
+
+			if(id == 0)
+				continue;
+
+			int hash = old.get(2 * oldSlot);
+			int slot = hash & mask;
+
+			while(table.get(2 * slot + 1) != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			table.put(2 * slot, hash);
+			table.put(2 * slot + 1, id);
+		}
+	}
+
+	private void allocateTable(int newCapacity)
+	{
+		capacity = newCapacity;
+		table = ByteBuffer.allocateDirect(capacity * 8).asIntBuffer();   //Direct buffers start zeroed, 0 is an empty slot
+	}
+
+	/*
+	 * Appends the code to the log. Returns its position.
+	 */
+	private long append(byte[] code)
+	{
+		ByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+		if(segment == null || segment.remaining() < 4 + code.length)
+		{
+			int newSize = segment == null ? Math.min(FIRST_SEGMENT_SIZE, segmentSize) : Math.min(2 * segment.capacity(), segmentSize);
+
+			segment = ByteBuffer.allocateDirect(Math.max(newSize, 4 + code.length));
+			segments.add(segment);
+			residentBytes += segment.capacity();
+
+			if(segments.size() - firstResident > residentSegments)
+				spillOldest();
+		}
+
+		long position = ((long) (segments.size() - 1) << 32) | segment.position();
+
+		segment.putInt(code.length);
+		segment.put(code);
+
+		return position;
+	}
+
+	/*
+	 * Writes the oldest direct segment to the spill file and maps it back
+	 */
+	private void spillOldest()
+	{
+		try
+		{
+			ByteBuffer segment = segments.get(firstResident).duplicate();
+
+			segment.clear();
+
+			while(segment.hasRemaining())
+			{
+				spill.write(segment, spillSize + segment.position());
+			}
+
+			segments.set(firstResident, spill.map(FileChannel.MapMode.READ_ONLY, spillSize, segment.capacity()));
+			spillSize += segment.capacity();
+			residentBytes -= segment.capacity();
+			firstResident++;
+		}
+		catch(IOException ex)
+		{
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/*
+	 * Reads the code of the state into scratch. Returns its length.
+	 */
+	private int read(int id)
+	{
+		long position = getPosition(id);
+		ByteBuffer segment = segments.get((int) (position >>> 32));
+		int offset = (int) position;
+		int length = segment.getInt(offset);
+
+		if(scratch.length < length)
+			scratch = new byte[Math.max(length, 2 * scratch.length)];
+
+		segment.get(offset + 4, scratch, 0, length);
+
+		return length;
+	}
+
+	private long getPosition(int id)
+	{
+		return positions.get(id / CHUNK_SIZE).get(id % CHUNK_SIZE);
+	}
+
+	private void setPosition(int id, long position)
+	{
+		if(id / CHUNK_SIZE == positions.size())
+			positions.add(ByteBuffer.allocateDirect(CHUNK_SIZE * 8).asLongBuffer());
+
+		positions.get(id / CHUNK_SIZE).put(id % CHUNK_SIZE, position);
+	}
+
+}
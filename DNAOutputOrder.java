@@ -0,0 +1,262 @@
+package automata.nsa;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * The numbering of the DNA states for the output: the initial tree is 0, the other trees follow by the order of
+ * their labels (DNATree.toString).
+ *
+ * The labels are not all kept on the heap at once: they are built and sorted in runs of about RUN_BYTES of labels,
+ * and when there is more than one run, the runs are written one after the other to a temporary file and merged.
+ * The labels are ASCII, so their bytes compare as the strings do.
+ *
+ * A run in the file has the number of its labels, then each label as its length, its bytes and the id of the state.
+ */
+class DNAOutputOrder {
+	
+	/*
+	 * Bytes of labels sorted in memory per run
+	 */
+	static final int RUN_BYTES = 1 << 22;
+	
+	private DNAOutputOrder()
+	{
+	}
+	
+	/*
+	 * Returns the ids of the states by their index
+	 */
+	static int[] compute(DNAStateStore table) throws IOException
+	{
+		return compute(table, RUN_BYTES);
+	}
+	
+	static int[] compute(DNAStateStore table, int runBytes) throws IOException
+	{
+		int size = table.size();
+		int[] order = new int[size];
+		List<Label> run = new ArrayList<Label>();
+		int from = sortedRun(table, 1, runBytes, run);
+		
+		if(from == size)
+		{
+			for(int i = 0; i < run.size(); i++)
+			{
+				order[i + 1] = run.get(i).id;
+			}
+			
+			return order;
+		}
+		
+		Path file = Files.createTempFile("dnaorder", ".runs");
+		
+		try
+		{
+			List<Long> starts = new ArrayList<Long>();
+			long position = 0;
+			
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file))))
+			{
+				while(true)
+				{
+					starts.add(position);
+					position += writeRun(run, out);
+					
+					if(from == size)
+						break;
+					
+					run.clear();
+					from = sortedRun(table, from, runBytes, run);
+				}
+			}
+			
+			try (FileChannel channel = FileChannel.open(file))
+			{
+				merge(channel, starts, order);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+		}
+		
+		return order;
+	}
+	
+	/*
+	 * Puts the labels of the states from the given id on into run, sorted, until they take the given number of
+	 * bytes (at least one state) or the states run out. Returns the id after the last one in the run.
+	 */
+	private static int sortedRun(DNAStateStore table, int from, int runBytes, List<Label> run)
+	{
+		int size = table.size();
+		long bytes = 0;
+		int id = from;
+		
+		while(id < size && (bytes < runBytes || id == from))
+		{
+			Label label = new Label(table.get(id).toString().getBytes(StandardCharsets.US_ASCII), id);
+			
+			run.add(label);
+			bytes += label.bytes.length;
+			id++;
+		}
+		
+		Collections.sort(run, Label.ORDER);
+		
+		return id;
+	}
+	
+	/*
+	 * Writes the run, returns its length in bytes
+	 */
+	private static long writeRun(List<Label> labels, DataOutputStream out) throws IOException
+	{
+		long length = 4;
+		
+		out.writeInt(labels.size());
+		
+		for(Label label : labels)
+		{
+			out.writeInt(label.bytes.length);
+			out.write(label.bytes);
+			out.writeInt(label.id);
+			length += 8 + label.bytes.length;
+		}
+		
+		return length;
+	}
+	
+	/*
+	 * Merges the sorted runs, which start at the given positions of the file, into order from index 1 on
+	 */
+	private static void merge(FileChannel channel, List<Long> starts, int[] order) throws IOException
+	{
+		PriorityQueue<Run> heads = new PriorityQueue<Run>(starts.size(), new Comparator<Run>() {
+			@Override
+			public int compare(Run o1, Run o2) {
+				return Label.ORDER.compare(o1.head, o2.head);
+			}
+		});
+		
+		for(long start : starts)
+		{
+			Run run = new Run(channel, start);
+			
+			if(run.next())
+				heads.add(run);
+		}
+		
+		for(int index = 1; !heads.isEmpty(); index++)
+		{
+			Run run = heads.poll();
+			
+			order[index] = run.head.id;
+			
+			if(run.next())
+				heads.add(run);
+		}
+	}
+	
+	private static class Label {
+		
+		static final Comparator<Label> ORDER = new Comparator<Label>() {
+			@Override
+			public int compare(Label o1, Label o2) {
+				return Arrays.compareUnsigned(o1.bytes, o2.bytes);
+			}
+		};
+		
+		final byte[] bytes;
+		
+		final int id;
+		
+		Label(byte[] bytes, int id)
+		{
+			this.bytes = bytes;
+			this.id = id;
+		}
+	}
+	
+	/*
+	 * A run being merged, with the label read last. The runs share the channel and read it at their own position,
+	 * through a small buffer each.
+	 */
+	private static class Run {
+		
+		private final FileChannel channel;
+		
+		private long position;
+		
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 12).flip();
+		
+		private int remaining;
+		
+		Label head;
+		
+		Run(FileChannel channel, long start) throws IOException
+		{
+			this.channel = channel;
+			this.position = start;
+			this.remaining = fill(4).getInt();
+		}
+		
+		/*
+		 * Reads the next label into head, false at the end of the run
+		 */
+		boolean next() throws IOException
+		{
+			if(remaining == 0)
+				return false;
+			
+			byte[] bytes = new byte[fill(4).getInt()];
+			
+			fill(bytes.length + 4).get(bytes);
+			head = new Label(bytes, buffer.getInt());
+			remaining--;
+			
+			return true;
+		}
+		
+		/*
+		 * The buffer, with at least the given number of bytes left to read
+		 */
+		private ByteBuffer fill(int bytes) throws IOException
+		{
+			if(buffer.remaining() >= bytes)
+				return buffer;
+			
+			if(bytes > buffer.capacity())
+				buffer = ByteBuffer.allocate(bytes).put(buffer);
+			else
+				buffer.compact();
+			
+			while(buffer.position() < bytes)
+			{
+				int read = channel.read(buffer, position);
+				
+				if(read < 0)
+					throw new EOFException();
+				
+				position += read;
+			}
+			
+			return buffer.flip();
+		}
+	}
+	
+}
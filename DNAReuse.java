@@ -0,0 +1,229 @@
+package automata.nsa;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * The DNA of an NSA before a small edit, whose transitions the exploration of the edited NSA reuses where the edit
+ * cannot change them (see DNAExplorer.setReuse). The previous DNA is read from its binary file with trees
+ * (see DNAFile), converted without minimizing.
+ *
+ * The transition of a tree with a letter sigma only reads the successors with sigma of the states of the tree,
+ * and the red and green sets on the image of those states, which are the states of the resulting tree. So it is
+ * the same as before the edit unless
+ *  - some state of the tree has other successors with sigma, or
+ *  - some state of the successor in the previous DNA has changed red or green sets.
+ * Both are found once per previous state when the file is read, and kept as bits.
+ *
+ * The exploration is still breadth first from the initial tree of the edited NSA, so it finds the same states in
+ * the same order as a fresh run, and the states no longer reachable are never visited. Only the transitions the
+ * edit affects are computed. An unaffected transition leads to a previous state, whose id in the exploration is
+ * kept once known, so the tree is only read from the file the first time the state is reached.
+ * The trees stay in the file: they are found by an open addressing hash table of the previous states.
+ */
+public class DNAReuse {
+
+	private NSA nsa;
+
+	private DNAFile previous;
+
+	/*
+	 * The previous states by the hash of their trees, as state+1, 0 for an empty slot
+	 */
+	private int[] index;
+
+	/*
+	 * Per previous state and letter (bit state*letters+letter), whether the edit changed the successors of
+	 * some state of the tree with the letter
+	 */
+	private long[] changedSuccessors;
+
+	/*
+	 * The previous states whose trees hold a state with changed red or green sets
+	 */
+	private long[] changedSets;
+
+	/*
+	 * The id in the exploration of each previous state, -1 until it is reached
+	 */
+	private AtomicIntegerArray ids;
+
+	private LongAdder reused = new LongAdder();
+
+	private LongAdder computed = new LongAdder();
+
+	/*
+	 * Reuses the DNA of the previous NSA, converted to the binary file with trees, for the edited NSA. The two NSAs
+	 * must have the same states, pairs and alphabet, otherwise the trees do not carry over.
+	 */
+	public DNAReuse(NSA previousNsa, DNAFile previous, NSA nsa)
+	{
+		if(!previous.hasTrees())
+			throw new IllegalArgumentException("The previous DNA file holds no trees");
+
+		if(previous.isMinimized())
+			throw new IllegalArgumentException("The previous DNA was minimized, its states are not all the trees");
+
+		if(previousNsa.getStateCount() != nsa.getStateCount() || previousNsa.getAnnotationCount() != nsa.getAnnotationCount())
+			throw new IllegalArgumentException("The edit changed the number of states or pairs");
+
+		if(!previousNsa.getAlphabet().equals(nsa.getAlphabet()) || previous.getLetterCount() != nsa.getAlphabetSize())
+			throw new IllegalArgumentException("The edit changed the alphabet");
+
+		for(int letter = 0; letter < nsa.getAlphabetSize(); letter++)
+		{
+			if(!previous.getSymbol(letter).equals(nsa.getSymbol(letter)))
+				throw new IllegalArgumentException("The previous DNA is not of the previous NSA");
+		}
+
+		this.nsa = nsa;
+		this.previous = previous;
+
+		readStates(previousNsa);
+	}
+
+	/*
+	 * Indexes the previous states, and finds the ones the edit affects
+	 */
+	private void readStates(NSA previousNsa)
+	{
+		int stateCount = previous.getStateCount();
+		int letterCount = nsa.getAlphabetSize();
+		int nsaStateCount = nsa.getStateCount();
+		DNATreeCodec codec = nsa.getTreeCodec();
+
+		long[][] successorsChanged = new long[letterCount][];
+
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			successorsChanged[letter] = BitSets.create(nsaStateCount);
+
+			for(int state = 0; state < nsaStateCount; state++)
+			{
+				if(!Arrays.equals(previousNsa.getSuccessors(letter, state), nsa.getSuccessors(letter, state)))
+					BitSets.add(successorsChanged[letter], state);
+			}
+		}
+
+		long[] setsChanged = BitSets.create(nsaStateCount);
+
+		for(int pair = 0; pair < nsa.getAnnotationCount(); pair++)
+		{
+			addDifference(setsChanged, previousNsa.getRedSet(pair), nsa.getRedSet(pair));
+			addDifference(setsChanged, previousNsa.getGreenSet(pair), nsa.getGreenSet(pair));
+		}
+
+		index = new int[Integer.highestOneBit(Math.max(2 * stateCount, 2) - 1) << 1];
+		changedSuccessors = BitSets.create(stateCount * letterCount);
+		changedSets = BitSets.create(stateCount);
+		ids = new AtomicIntegerArray(stateCount);
+
+		long[] treeStates = BitSets.create(nsaStateCount);
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			DNATree tree = previous.getTree(nsa, state);
+			byte[] code = tree.getCode();
+
+			Arrays.fill(treeStates, 0);
+
+			for(int nsaState = 0; nsaState < nsaStateCount; nsaState++)
+			{
+				if(codec.getState(code, nsaState) != Integer.MAX_VALUE)
+					BitSets.add(treeStates, nsaState);
+			}
+
+			for(int letter = 0; letter < letterCount; letter++)
+			{
+				if(BitSets.intersects(treeStates, successorsChanged[letter]))
+					BitSets.add(changedSuccessors, state * letterCount + letter);
+			}
+
+			if(BitSets.intersects(treeStates, setsChanged))
+				BitSets.add(changedSets, state);
+
+			int slot = tree.hashCode() & (index.length - 1);
+
+			while(index[slot] != 0)
+			{
+				slot = (slot + 1) & (index.length - 1);
+			}
+
+			index[slot] = state + 1;
+			ids.set(state, -1);
+		}
+	}
+
+	private static void addDifference(long[] difference, long[] set1, long[] set2)
+	{
+		for(int i = 0; i < difference.length; i++)
+		{
+			difference[i] |= set1[i] ^ set2[i];
+		}
+	}
+
+	/*
+	 * The previous state of the tree with the given id in the exploration, or -1 when the tree is not in the
+	 * previous DNA. Safe for concurrent use.
+	 */
+	int find(int id, DNATree tree)
+	{
+		for(int slot = tree.hashCode() & (index.length - 1); index[slot] != 0; slot = (slot + 1) & (index.length - 1))
+		{
+			int state = index[slot] - 1;
+
+			if(tree.equals(previous.getTree(nsa, state)))
+			{
+				ids.set(state, id);
+				return state;
+			}
+		}
+
+		return -1;
+	}
+
+	/*
+	 * The id of the successor with the letter of the given previous state (see find) from the previous DNA, or -1
+	 * when there is no previous state or the edit may change the transition. A successor not reached yet is added
+	 * to the states. Safe for concurrent use.
+	 */
+	int successor(int state, int letter, DNAStateStore states)
+	{
+		if(state < 0 || BitSets.contains(changedSuccessors, state * previous.getLetterCount() + letter)
+				|| BitSets.contains(changedSets, previous.successor(state, letter)))
+		{
+			computed.increment();
+			return -1;
+		}
+
+		int successor = previous.successor(state, letter);
+		int id = ids.get(successor);
+
+		if(id < 0)
+		{
+			id = states.add(previous.getTree(nsa, successor));
+			ids.set(successor, id);
+		}
+
+		reused.increment();
+
+		return id;
+	}
+
+	/*
+	 * The number k of the transition of the previous state with the letter
+	 */
+	int k(int state, int letter) {return previous.k(state, letter);}
+
+	/*
+	 * Number of transitions taken from the previous DNA
+	 */
+	public long getReused() {return reused.sum();}
+
+	/*
+	 * Number of transitions computed anew
+	 */
+	public long getComputed() {return computed.sum();}
+
+}
@@ -0,0 +1,32 @@
+package automata.nsa;
+
+/*
+ * The store of the DNA states explored so far, behind the exploration (see DNAExplorer).
+ * Every tree gets an id by the order it was added, starting at 0 with the initial tree.
+ * Trees are identified as in DNATree.equals. Implementations must be safe for concurrent use.
+ *
+ * DNAStateTable keeps the trees on the heap, DNAOffHeapStateStore keeps only their encodings, off the heap.
+ */
+public interface DNAStateStore {
+
+	/*
+	 * Adds the tree to the store if it is not there yet. Returns its id either way.
+	 */
+	int add(DNATree tree);
+
+	DNATree get(int id);
+
+	int size();
+
+	/*
+	 * Total size of the encoded trees, in bytes
+	 */
+	long getEncodedBytes();
+
+	/*
+	 * Renumbers the trees: the tree with id i becomes the one that had id oldIds[i].
+	 * oldIds must be a permutation of the ids.
+	 */
+	void reorder(int[] oldIds);
+
+}
@@ -0,0 +1,97 @@
+package automata.nsa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * The table of the DNA states explored so far, kept on the heap.
+ * Every tree gets an id by the order it was added, the initial tree always being id 0.
+ * Lookups go through the hash of the canonical key of the tree (see DNATree.equals).
+ * The table is safe for concurrent use: lookups are lock free, only adding a new tree takes a lock.
+ */
+public class DNAStateTable implements DNAStateStore {
+
+	/*
+	 * Maps each explored tree to its id
+	 */
+	private ConcurrentMap<DNATree, Integer> ids;
+
+	/*
+	 * The explored trees, by id
+	 */
+	private List<DNATree> trees;
+
+	/*
+	 * Total size of the encoded trees, in bytes
+	 */
+	private long encodedBytes;
+
+	public DNAStateTable()
+	{
+		ids = new ConcurrentHashMap<DNATree, Integer>();
+		trees = new ArrayList<DNATree>();
+	}
+
+	/*
+	 * Adds the tree to the table if it is not there yet. Returns its id either way.
+	 */
+	@Override
+	public int add(DNATree tree)
+	{
+		Integer id = ids.get(tree);
+
+		if(id != null)
+		{
+			if(DNAMetrics.isEnabled())
+				DNAMetrics.countLookup(true);
+
+			return id;
+		}
+
+		synchronized(this)
+		{
+			id = ids.get(tree);
+
+			if(DNAMetrics.isEnabled())
+				DNAMetrics.countLookup(id != null);
+
+			if(id == null)
+			{
+				id = trees.size();
+				trees.add(tree);
+				ids.put(tree, id);
+				encodedBytes += tree.getEncodedLength();
+			}
+
+			return id;
+		}
+	}
+
+	@Override
+	public synchronized DNATree get(int id) {return trees.get(id);}
+
+	@Override
+	public synchronized int size() {return trees.size();}
+
+	@Override
+	public synchronized long getEncodedBytes() {return encodedBytes;}
+
+	@Override
+	public synchronized void reorder(int[] oldIds)
+	{
+		List<DNATree> reordered = new ArrayList<DNATree>(trees.size());
+
+		for(int id = 0; id < oldIds.length; id++)
+		{
+			DNATree tree = trees.get(oldIds[id]);
+
+			reordered.add(tree);
+			ids.put(tree, id);
+		}
+
+		trees = reordered;
+	}
+
+}
@@ -0,0 +1,965 @@
+package automata.nsa;
+
+import java.util.Arrays;
+
+/*
+ * Computes DNA transitions directly on the array representation of the trees.
+ * The encoded tree (see DNATreeCodec) is expanded into tree arrays owned by the engine, and the spawn, seniority
+ * and uniqueness/packing stages all run on flat arrays, which are reused from one transition to the next,
+ * so a transition allocates nothing but its encoded result.
+ * An engine is not thread safe, the NSA keeps one per thread (see NSA.getTransitionEngine).
+ *
+ * When the NSA shares trees (see NSA.enableSharedTrees), a transition starts from the nodes of the tree instead of
+ * its code, takes the spawn stage of each node from the node when it was computed before, and builds the nodes of
+ * the result, so it also allocates the spawn results of new nodes and the nodes of the result before interning.
+ *
+ * During a transition every node has a slot, holding its index, parent, annotation, excluded annotations,
+ * states and children. The nodes of the packed tree take slots 0..count-1, and a node i spawns its green
+ * (or phi) child at index i+N' and its templar child at index i+2N'. Indices of spawned nodes may coincide
+ * with other nodes when the tree has more than N' nodes, so the slots are what tells the nodes apart, while
+ * the uniqueness stage works on the index arrays, exactly as the tree arrays are written.
+ */
+final class DNATransitionEngine {
+
+	private NSA nsa;
+
+	private DNATreeCodec codec;
+
+	private int nPrime;
+
+	/*
+	 * The length of the tree arrays, 3*N'. Values not smaller than it are undefined.
+	 */
+	private int length;
+
+	/*
+	 * Words in a set of states
+	 */
+	private int words;
+
+	/*
+	 * Bitmask of all annotations
+	 */
+	private long allAnnotations;
+
+	/*
+	 * The tree arrays the transition runs on. Between transitions they hold the packed result of the last one,
+	 * with resultCount nodes.
+	 */
+	private int[] tree;
+	private int[] statesMap;
+	private int[] annotations;
+	private int resultCount;
+
+	/*
+	 * Per slot: index, parent slot, annotation and excluded annotations (bitmask)
+	 */
+	private int slotCount;
+	private int[] slotIndex;
+	private int[] slotParent;
+	private int[] slotAnnotation;
+	private long[] slotExcluded;
+
+	/*
+	 * The states of slot s are kept at words s*words..(s+1)*words-1
+	 */
+	private long[] slotStates;
+
+	/*
+	 * The states passed down to each slot by the seniority stage, in the same layout as slotStates
+	 */
+	private long[] slotArrived;
+
+	/*
+	 * Children of a slot in the order they were added, which is the order the tree arrays are written in
+	 */
+	private int[] firstChild;
+	private int[] lastChild;
+	private int[] nextSibling;
+
+	/*
+	 * Children of a slot in seniority order: non templar children by index (ties kept in the order added),
+	 * then the templar child
+	 */
+	private int[] firstSenior;
+	private int[] nextSenior;
+
+	/*
+	 * Spawned green/phi slots and spawned templar slots, each by increasing index
+	 */
+	private int[] spawned;
+	private int[] spawnedTemplars;
+
+	private int[] stack;
+
+	/*
+	 * The shared nodes of the tree by index (see loadNodes and share), null unless the NSA shares trees
+	 */
+	private DNATreeNode[] slotNodes;
+
+	/*
+	 * Image of a set of states before it is copied back to its slot
+	 */
+	private long[] image;
+
+	/*
+	 * The distinct indices used by the slots in increasing order, and their number
+	 */
+	private int[] indices;
+	private int indexCount;
+
+	/*
+	 * Per index: next available annotation in case the node goes green, and the uniqueness stage flags
+	 */
+	private int[] available;
+	private boolean[] hasUnique;
+	private boolean[] hasTemplarChild;
+	private boolean[] isDead;
+	private boolean[] isEmpty;
+	private int[] newTreeIndices;
+
+	/*
+	 * Counters of this engine, created once metrics are enabled (see DNAMetrics)
+	 */
+	private DNAMetrics.Stages stages;
+
+	DNATransitionEngine(NSA nsa)
+	{
+		this.nsa = nsa;
+		this.codec = nsa.getTreeCodec();
+		this.nPrime = nsa.getNPrime();
+		this.length = 3 * nPrime;
+		this.words = nsa.getStateWords();
+		this.allAnnotations = nsa.getAnnotationCount() == 64 ? -1L : (1L << nsa.getAnnotationCount()) - 1;
+
+		tree = new int[length];
+		statesMap = new int[nsa.getStateCount()];
+		annotations = new int[length];
+
+		Arrays.fill(tree, Integer.MAX_VALUE);
+		Arrays.fill(annotations, Integer.MAX_VALUE);
+
+		ensureSlots(16);
+
+		image = new long[words];
+
+		indices = new int[length];
+		available = new int[length];
+		hasUnique = new boolean[length];
+		hasTemplarChild = new boolean[length];
+		isDead = new boolean[length];
+		isEmpty = new boolean[length];
+		newTreeIndices = new int[length];
+	}
+
+	/*
+	 * Applies the transition with letter sigma on the encoded tree. Returns the number k,
+	 * the resulting tree is then encoded by getResult.
+	 */
+	int apply(byte[] code, int sigma)
+	{
+		return apply(code, null, sigma);
+	}
+
+	/*
+	 * Same as apply(byte[], int), on a shared tree given by its root. The resulting tree is then given by getSharedResult.
+	 */
+	int apply(DNATreeNode root, int sigma)
+	{
+		return apply(null, root, sigma);
+	}
+
+	private int apply(byte[] code, DNATreeNode root, int sigma)
+	{
+		if(DNAMetrics.isEnabled())
+			return applyMeasured(code, root, sigma);
+
+		int count;
+
+		if(root == null)
+		{
+			count = decode(code);
+			loadTree(count);
+		}
+		else
+			count = loadNodes(root);
+
+		spawn(count, sigma, root != null);   // Perform spawn stage
+		fixSeniority(tree, statesMap, annotations);
+
+		return fixUnique(tree, statesMap, annotations);  //Perform uniqueness and packing stage and return the number k.
+	}
+
+	/*
+	 * Same as apply, timing every stage. Loading a shared tree counts as loading, there is nothing to decode.
+	 */
+	private int applyMeasured(byte[] code, DNATreeNode root, int sigma)
+	{
+		if(stages == null)
+			stages = DNAMetrics.newStages(length);
+
+		long time = System.nanoTime();
+		int count = root == null ? decode(code) : 0;
+
+		time = stages.lap(DNAMetrics.DECODE, time);
+
+		if(root == null)
+			loadTree(count);
+		else
+			count = loadNodes(root);
+
+		time = stages.lap(DNAMetrics.LOAD, time);
+		spawn(count, sigma, root != null);
+		time = stages.lap(DNAMetrics.SPAWN, time);
+		fixSeniority(tree, statesMap, annotations);
+		time = stages.lap(DNAMetrics.SENIORITY, time);
+
+		int k = fixUnique(tree, statesMap, annotations);
+
+		stages.lap(DNAMetrics.UNIQUE, time);
+		stages.countTransition(resultCount);
+
+		return k;
+	}
+
+	/*
+	 * Called when the NSA drops this engine, to keep its counts once it is gone
+	 */
+	void release()
+	{
+		if(stages != null)
+		{
+			DNAMetrics.retire(stages);
+			stages = null;
+		}
+	}
+
+	/*
+	 * The encoding of the tree resulting from the last transition
+	 */
+	byte[] getResult()
+	{
+		if(stages == null || !DNAMetrics.isEnabled())
+			return codec.encode(tree, statesMap, annotations, resultCount);
+
+		long time = System.nanoTime();
+		byte[] result = codec.encode(tree, statesMap, annotations, resultCount);
+
+		stages.lap(DNAMetrics.ENCODE, time);
+
+		return result;
+	}
+
+	/*
+	 * The tree resulting from the last transition as shared nodes. Building them counts as encoding.
+	 */
+	DNATreeNode getSharedResult()
+	{
+		if(stages == null || !DNAMetrics.isEnabled())
+			return share(resultCount);
+
+		long time = System.nanoTime();
+		DNATreeNode result = share(resultCount);
+
+		stages.lap(DNAMetrics.ENCODE, time);
+
+		return result;
+	}
+
+	/*
+	 * The shared nodes of the encoded tree
+	 */
+	DNATreeNode share(byte[] code)
+	{
+		resultCount = decode(code);
+
+		return share(resultCount);
+	}
+
+	/*
+	 * The encoding of a shared tree. The tree arrays are written from the nodes: a node maps the states of its subtree
+	 * to itself, and its descendants, which come later, overwrite those they hold.
+	 */
+	byte[] encode(DNATreeNode root)
+	{
+		int count = root.size;
+
+		if(slotNodes == null)
+			slotNodes = new DNATreeNode[length];
+
+		if(count < resultCount)
+		{
+			Arrays.fill(tree, count, resultCount, Integer.MAX_VALUE);
+			Arrays.fill(annotations, count, resultCount, Integer.MAX_VALUE);
+		}
+
+		Arrays.fill(statesMap, Integer.MAX_VALUE);
+		tree[0] = Integer.MAX_VALUE;
+		slotNodes[0] = root;
+
+		for(int i = 0; i < count; i++)
+		{
+			DNATreeNode node = slotNodes[i];
+
+			annotations[i] = node.annotation;
+
+			for(int state = BitSets.nextSetBit(node.states, 0); state >= 0; state = BitSets.nextSetBit(node.states, state + 1))
+			{
+				statesMap[state] = i;
+			}
+
+			for(DNATreeNode child : node.children)
+			{
+				slotNodes[child.index] = child;
+				tree[child.index] = i;
+			}
+		}
+
+		resultCount = count;
+
+		return codec.encode(tree, statesMap, annotations, count);
+	}
+
+	/*
+	 * Expands the encoded tree into the tree arrays. Returns the node count.
+	 */
+	private int decode(byte[] code)
+	{
+		int count = codec.decode(code, tree, statesMap, annotations);
+
+		if(count < resultCount)              //Entries out of the tree are undefined
+		{
+			Arrays.fill(tree, count, resultCount, Integer.MAX_VALUE);
+			Arrays.fill(annotations, count, resultCount, Integer.MAX_VALUE);
+		}
+
+		return count;
+	}
+
+	/*
+	 * Reads the count nodes of the packed tree into slots, with their excluded annotations and their states
+	 */
+	private void loadTree(int count)
+	{
+		ensureSlots(3 * count);
+		Arrays.fill(slotStates, 0, count * words, 0L);
+
+		for(int i = 0; i < count; i++)
+		{
+			slotIndex[i] = i;
+			slotAnnotation[i] = annotations[i];
+			firstChild[i] = -1;
+			lastChild[i] = -1;
+
+			if(i == 0)
+			{
+				slotParent[i] = -1;
+				slotExcluded[i] = 0;
+			}
+			else
+			{
+				int parent = tree[i];
+
+				slotParent[i] = parent;
+				addChild(parent, i);
+				slotExcluded[i] = slotExcluded[parent];
+
+				if(annotations[parent] == -1)                                    //Setting excluded
+				{
+					slotExcluded[i] |= annotationBit(annotations[tree[parent]]);
+				}
+			}
+		}
+
+		for(int state = 0; state < statesMap.length; state++)
+		{
+			if(statesMap[state] < length)
+			{
+				slotStates[statesMap[state] * words + (state >>> 6)] |= 1L << state;
+			}
+		}
+
+		for(int i = count - 1; i > 0; i--)                   //A node holds the states of its subtree
+		{
+			int from = i * words;
+			int parentFrom = tree[i] * words;
+
+			for(int w = 0; w < words; w++)
+			{
+				slotStates[parentFrom + w] |= slotStates[from + w];
+			}
+		}
+
+		slotCount = count;
+	}
+
+	/*
+	 * Same as loadTree, for a shared tree given by its root: the slots are read from the nodes, which hold their
+	 * excluded annotations and the states of their subtree. Returns the node count.
+	 */
+	private int loadNodes(DNATreeNode root)
+	{
+		int count = root.size;
+
+		ensureSlots(3 * count);
+
+		if(slotNodes == null)
+			slotNodes = new DNATreeNode[length];
+
+		if(count < resultCount)              //Entries out of the tree are undefined
+		{
+			Arrays.fill(tree, count, resultCount, Integer.MAX_VALUE);
+			Arrays.fill(annotations, count, resultCount, Integer.MAX_VALUE);
+		}
+
+		slotNodes[0] = root;
+		slotParent[0] = -1;
+
+		for(int i = 0; i < count; i++)      //A child has a larger index than its parent, so it is met after it
+		{
+			DNATreeNode node = slotNodes[i];
+
+			slotIndex[i] = i;
+			slotAnnotation[i] = node.annotation;
+			slotExcluded[i] = node.excluded;
+			firstChild[i] = -1;
+			lastChild[i] = -1;
+			System.arraycopy(node.states, 0, slotStates, i * words, words);
+
+			for(DNATreeNode child : node.children)
+			{
+				slotNodes[child.index] = child;
+				slotParent[child.index] = i;
+				addChild(i, child.index);
+			}
+		}
+
+		slotCount = count;
+
+		return count;
+	}
+
+	/*
+	 * The shared nodes of the packed tree in the tree arrays, built from the leaves up on the slots of loadTree.
+	 * A tree whose label leaves out some of its parents is the first tree interned with its label (see NSA.internRoot).
+	 */
+	private DNATreeNode share(int count)
+	{
+		if(slotNodes == null)
+			slotNodes = new DNATreeNode[length];
+
+		loadTree(count);
+
+		for(int i = count - 1; i >= 0; i--)
+		{
+			int childCount = 0;
+
+			for(int child = firstChild[i]; child >= 0; child = nextSibling[child])
+			{
+				childCount++;
+			}
+
+			DNATreeNode[] children = new DNATreeNode[childCount];
+			int n = 0;
+
+			for(int child = firstChild[i]; child >= 0; child = nextSibling[child])
+			{
+				children[n++] = slotNodes[child];
+			}
+
+			long[] states = Arrays.copyOfRange(slotStates, i * words, (i + 1) * words);
+
+			slotNodes[i] = nsa.internNode(new DNATreeNode(i, slotAnnotation[i], slotExcluded[i], states, children));
+		}
+
+		if(count > Math.max(nPrime, 1))
+			return nsa.internRoot(codec.encode(tree, statesMap, annotations, count), slotNodes[0]);
+
+		return slotNodes[0];
+	}
+
+	/*
+	 * Applies sigma on the states of every node and spawns the new children. For a shared tree the image of a node
+	 * and the green states of its green child are taken from the node when they were computed before, and kept in
+	 * it otherwise.
+	 */
+	private void spawn(int count, int sigma, boolean shared)
+	{
+		int spawnedCount = 0;
+		int templarCount = 0;
+		int letterClass = nsa.getLetterClass(sigma);
+
+		for(int i = 0; i < count; i++)
+		{
+			int from = i * words;
+			long[] memo = shared ? slotNodes[i].getSpawn(letterClass) : null;
+
+			if(memo != null)
+				System.arraycopy(memo, 0, slotStates, from, words);
+			else
+			{
+				nsa.transitionFunction(slotStates, from, slotExcluded[i], sigma, image, 0);
+				System.arraycopy(image, 0, slotStates, from, words);
+			}
+
+			int annotation = slotAnnotation[i];
+
+			if(annotation == -1)            //Special's child
+			{
+				int parentAnnotation = slotAnnotation[slotParent[i]];
+				long free = allAnnotations & ~slotExcluded[i] & ~annotationBit(parentAnnotation);
+				int newAnnotation = free == 0 ? -2 : Long.numberOfTrailingZeros(free); //-2 means phi
+
+				spawned[spawnedCount++] = addSlot(i, i + nPrime, newAnnotation, slotExcluded[i] | annotationBit(parentAnnotation));
+			}
+
+			else if(annotation >= 0)
+			{
+				if(firstChild[i] < 0) //Spawn: Special
+				{
+					spawnedTemplars[templarCount++] = addSlot(i, i + 2 * nPrime, -1, slotExcluded[i]);
+				}
+
+				int child = addSlot(i, i + nPrime, nextAvailableAnnotation(annotation, slotExcluded[i]), slotExcluded[i]);
+
+				if(memo != null)
+					System.arraycopy(memo, words, slotStates, child * words, words);
+				else
+					nsa.retainGreen(slotStates, child * words, annotation);
+
+				spawned[spawnedCount++] = child;
+			}
+
+			if(shared && memo == null)
+				slotNodes[i].putSpawn(letterClass, nsa.getLetterClassCount(), spawnResult(i, annotation >= 0 ? spawned[spawnedCount - 1] : -1));
+		}
+
+		collectIndices(count, spawnedCount, templarCount);
+	}
+
+	/*
+	 * The spawn stage of a node to keep in its shared node (see DNATreeNode.getSpawn): the image of its states, and
+	 * the states of its green child when it has one
+	 */
+	private long[] spawnResult(int slot, int greenChild)
+	{
+		long[] result = new long[greenChild < 0 ? words : 2 * words];
+
+		System.arraycopy(slotStates, slot * words, result, 0, words);
+
+		if(greenChild >= 0)
+			System.arraycopy(slotStates, greenChild * words, result, words, words);
+
+		return result;
+	}
+
+	/*
+	 * Adds a spawned node holding the states of its parent. Returns its slot.
+	 */
+	private int addSlot(int parent, int index, int annotation, long excludedAnnotations)
+	{
+		int slot = slotCount++;
+
+		slotIndex[slot] = index;
+		slotParent[slot] = parent;
+		slotAnnotation[slot] = annotation;
+		slotExcluded[slot] = excludedAnnotations;
+		firstChild[slot] = -1;
+		lastChild[slot] = -1;
+		addChild(parent, slot);
+
+		System.arraycopy(slotStates, parent * words, slotStates, slot * words, words);
+
+		return slot;
+	}
+
+	private void addChild(int parent, int child)
+	{
+		nextSibling[child] = -1;
+
+		if(lastChild[parent] < 0)
+			firstChild[parent] = child;
+		else
+			nextSibling[lastChild[parent]] = child;
+
+		lastChild[parent] = child;
+	}
+
+	/*
+	 * Lists the distinct indices of the slots in increasing order, merging the indices of the packed tree
+	 * with the indices of the spawned nodes and of the spawned templars.
+	 */
+	private void collectIndices(int count, int spawnedCount, int templarCount)
+	{
+		int a = 0, b = 0, c = 0;
+		indexCount = 0;
+
+		while(a < count || b < spawnedCount || c < templarCount)
+		{
+			int next = a < count ? a : Integer.MAX_VALUE;
+
+			if(b < spawnedCount)
+				next = Math.min(next, slotIndex[spawned[b]]);
+
+			if(c < templarCount)
+				next = Math.min(next, slotIndex[spawnedTemplars[c]]);
+
+			if(a < count && a == next)
+				a++;
+
+			while(b < spawnedCount && slotIndex[spawned[b]] == next)
+				b++;
+
+			while(c < templarCount && slotIndex[spawnedTemplars[c]] == next)
+				c++;
+
+			indices[indexCount++] = next;
+		}
+	}
+
+	/*
+	 * Perform seniority fix stage: writes the tree arrays from the slots, then gives each state to
+	 * the node reached by always following the most senior child holding it.
+	 * This is done top down in a single pass: each node passes the states that arrived at it to its children
+	 * in seniority order, every child taking those it holds, and keeps the states no child took.
+	 */
+	private void fixSeniority(int[] tree, int[] statesMap, int[] annotations)
+	{
+		for(int slot = 0; slot < slotCount; slot++)
+		{
+			int index = slotIndex[slot];
+
+			tree[index] = Integer.MAX_VALUE;
+			annotations[index] = Integer.MAX_VALUE;
+			available[index] = Integer.MAX_VALUE;
+			firstSenior[slot] = -1;
+		}
+
+		for(int slot = 1; slot < slotCount; slot++)
+		{
+			addSenior(slotParent[slot], slot);
+		}
+
+		int top = 0;
+		stack[top++] = 0;
+
+		while(top > 0)        //Write the arrays in preorder, so that of two nodes with the same index the later one is kept
+		{
+			int slot = stack[--top];
+			int index = slotIndex[slot];
+
+			if(slot > 0)
+				tree[index] = slotIndex[slotParent[slot]];
+
+			annotations[index] = slotAnnotation[slot];
+			available[index] = nextAvailableAnnotation(slotAnnotation[slot], slotExcluded[slot]);
+
+			int first = top;
+			for(int child = firstChild[slot]; child >= 0; child = nextSibling[child])
+			{
+				stack[top++] = child;
+			}
+
+			reverse(stack, first, top);
+		}
+
+		Arrays.fill(statesMap, Integer.MAX_VALUE);
+		Arrays.fill(slotArrived, 0, words, -1L);
+
+		if((statesMap.length & 63) != 0)
+			slotArrived[words - 1] = (1L << statesMap.length) - 1;
+
+		for(int slot = 0; slot < slotCount; slot++)    //Parents come before their children in slot order
+		{
+			int from = slot * words;
+
+			for(int child = firstSenior[slot]; child >= 0; child = nextSenior[child])
+			{
+				int childFrom = child * words;
+
+				for(int w = 0; w < words; w++)
+				{
+					long states = slotStates[childFrom + w];
+
+					slotArrived[childFrom + w] = slotArrived[from + w] & states;
+					slotArrived[from + w] &= ~states;
+				}
+			}
+
+			for(int w = 0; w < words; w++)
+			{
+				for(long word = slotArrived[from + w] & slotStates[from + w]; word != 0; word &= word - 1)
+				{
+					statesMap[(w << 6) + Long.numberOfTrailingZeros(word)] = slotIndex[slot];
+				}
+			}
+		}
+	}
+
+	/*
+	 * Inserts the child in the seniority list of its parent, after the children of the same seniority
+	 */
+	private void addSenior(int parent, int child)
+	{
+		int previous = -1;
+		int next = firstSenior[parent];
+
+		while(next >= 0 && !isMoreSenior(child, next))
+		{
+			previous = next;
+			next = nextSenior[next];
+		}
+
+		nextSenior[child] = next;
+
+		if(previous < 0)
+			firstSenior[parent] = child;
+		else
+			nextSenior[previous] = child;
+	}
+
+	/*
+	 * Templars are the least senior, other nodes are ordered by index
+	 */
+	private boolean isMoreSenior(int slot, int other)
+	{
+		if(slotAnnotation[slot] == -1)
+			return false;
+
+		return slotAnnotation[other] == -1 || slotIndex[slot] < slotIndex[other];
+	}
+
+	/*
+	 * Performs the uniqueness and packing fixing stages
+	 */
+	private int fixUnique(int[] tree, int[] statesMap, int[] annotations)
+	{
+		int k = Integer.MAX_VALUE;
+
+		for(int n = 0; n < indexCount; n++)
+		{
+			int i = indices[n];
+
+			hasUnique[i] = false;
+			isDead[i] = false;
+			isEmpty[i] = true;
+			hasTemplarChild[i] = false;
+		}
+
+		for(int i = 0; i < statesMap.length;i++)
+		{
+			if(statesMap[i] < length)
+			{
+				hasUnique[statesMap[i]] = true;                         //Find all nodes with no uniqueness
+			}
+		}
+
+		for(int n = indexCount - 1; n >= 0; n--)                    //Find all non empty nodes
+		{
+			int i = indices[n];
+
+			if(hasUnique[i])
+				isEmpty[i] = false;
+
+			if(tree[i] < length && !isEmpty[i])
+			{
+				isEmpty[tree[i]] = false;
+			}
+		}
+
+		for(int n = 1; n < indexCount; n++)                     //Find all nodes with a non empty templar child
+		{
+			int i = indices[n];
+
+			if(annotations[i] == -1 && !isEmpty[i])
+				hasTemplarChild[tree[i]] = true;
+		}
+
+		for(int n = 0; n < indexCount; n++)             //Update annotation if becoming green
+		{
+			int i = indices[n];
+
+			if(!hasUnique[i] && !hasTemplarChild[i] && annotations[i] >= 0)
+				annotations[i] = available[i];
+		}
+
+		for(int n = 1; n < indexCount; n++)
+		{
+			int i = indices[n];
+			int parent = tree[i];
+
+			if(isDead[parent])                      //Mark all nodes whose father has no unique as dead and adjust pointers
+			{
+				isDead[i] = true;
+				tree[i] = tree[parent];
+			}
+
+			else if(!hasUnique[parent] && !hasTemplarChild[parent] && annotations[parent] >= 0)
+			{
+				isDead[i] = true; //Parent loses this child, since he's gone green
+			}
+		}
+
+		for(int i = 0; i < statesMap.length;i++)
+		{
+			if(statesMap[i] < length && isDead[statesMap[i]])                 //Fix the state map
+			{
+				statesMap[i] = tree[statesMap[i]];
+			}
+		}
+
+		for(int n = 0; n < indexCount; n++)
+		{
+			isEmpty[indices[n]] = true;
+		}
+
+		for(int i = 0; i < statesMap.length;i++)
+		{
+			if(statesMap[i] < length)
+			{
+				isEmpty[statesMap[i]] = false;
+			}
+		}
+
+		for(int n = indexCount - 1; n >= 0; n--)                    //Find all non empty nodes
+		{
+			int i = indices[n];
+
+			if(tree[i] < length && !isEmpty[i])
+			{
+				isEmpty[tree[i]] = false;
+			}
+		}
+
+		for(int n = 1; n < indexCount; n++)                                //Remove empty nodes
+		{
+			int i = indices[n];
+
+			if(isEmpty[i])
+			{
+				tree[i] = Integer.MAX_VALUE;
+			}
+		}
+
+		for(int i = 0; i < length && k == Integer.MAX_VALUE;i++)     //Find k from g and b, an index out of the tree is empty
+		{
+			if(i == 0 ? isEmpty[0] : tree[i] >= length)
+			{
+				k = 2*i;
+			}
+
+			else if((!hasUnique[i] && !hasTemplarChild[i] && annotations[i] >= 0) || annotations[i] == -2)
+			{
+				k = 2*i + 1;
+			}
+		}
+
+		//--------------------------------------------------End of uniqueness, beginning partition fix---------------------------------------------
+
+		int count = 1;
+		newTreeIndices[0] = 0;
+
+		for(int n = 1; n < indexCount; n++)
+		{
+			int i = indices[n];
+
+			if(tree[i] < length)
+			{
+				newTreeIndices[i] = count;
+				tree[count] = newTreeIndices[tree[i]];
+				annotations[count] = annotations[i];
+				count++;
+			}
+		}
+
+		for(int i = 0;i < statesMap.length;i++)
+		{
+			if(statesMap[i] < length)
+			{
+				statesMap[i] = newTreeIndices[statesMap[i]];
+			}
+		}
+
+		for(int n = 1; n < indexCount; n++)
+		{
+			int i = indices[n];
+
+			if(i >= count)
+			{
+				tree[i] = Integer.MAX_VALUE;
+				annotations[i] = Integer.MAX_VALUE;
+			}
+		}
+
+		resultCount = count;
+
+		return k;
+	}
+
+	/*
+	 * Next available annotation after the given one, in case the node went green
+	 */
+	private int nextAvailableAnnotation(int annotation, long excludedAnnotations)
+	{
+		long free = allAnnotations & ~excludedAnnotations;
+		int annotationCount = nsa.getAnnotationCount();
+
+		if(free == 0)
+			return Integer.MAX_VALUE;
+
+		for(int i = annotation + 1; i < annotationCount * 2 + 1; i++)
+		{
+			int anot = i % annotationCount;
+
+			if((free & annotationBit(anot)) != 0)
+				return anot;
+		}
+
+		return Integer.MAX_VALUE;
+	}
+
+	/*
+	 * Makes room for the given number of slots
+	 */
+	private void ensureSlots(int slots)
+	{
+		if(slotIndex != null && slotIndex.length >= slots)
+			return;
+
+		int capacity = Math.max(slots, slotIndex == null ? 0 : 2 * slotIndex.length);
+
+		slotIndex = new int[capacity];
+		slotParent = new int[capacity];
+		slotAnnotation = new int[capacity];
+		slotExcluded = new long[capacity];
+		slotStates = new long[capacity * words];
+		slotArrived = new long[capacity * words];
+		firstChild = new int[capacity];
+		lastChild = new int[capacity];
+		nextSibling = new int[capacity];
+		firstSenior = new int[capacity];
+		nextSenior = new int[capacity];
+		spawned = new int[capacity];
+		spawnedTemplars = new int[capacity];
+		stack = new int[capacity];
+	}
+
+	private static void reverse(int[] array, int from, int to)
+	{
+		for(int i = from, j = to - 1; i < j; i++, j--)
+		{
+			int tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+
+	/*
+	 * The bit of the annotation in a bitmask of annotations. Templar and phi have no bit.
+	 */
+	static long annotationBit(int annotation)
+	{
+		return annotation >= 0 && annotation < 64 ? 1L << annotation : 0L;
+	}
+
+}
@@ -0,0 +1,214 @@
+package automata.nsa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/*
+ * The transition table of a DNA, filled while the DNA is explored.
+ * For every state and letter (by their indices) it holds the index of the target state and the number k.
+ * Letters of the same class (see NSA.getLetterClasses) have the same transitions, which are kept once per class.
+ * With the states off the heap (see DNAOffHeapStateStore), the table is kept in direct buffers as well.
+ */
+public class DNATransitionTable {
+
+	private int letterCount;
+	
+	/*
+	 * The class of each letter, and the first letter of each class
+	 */
+	private int[] letterClasses;
+	
+	private int[] representatives;
+	
+	private int classCount;
+	
+	/*
+	 * Target state of the transition from state q with a letter of class c is at targets[q*classCount + c].
+	 * Undefined values are -1.
+	 */
+	private int[] targets;
+	
+	/*
+	 * The number k of the transition, at the same position as in targets
+	 */
+	private int[] ks;
+	
+	/*
+	 * targets and ks in direct memory, instead of the arrays, for a table off the heap
+	 */
+	private IntBuffer directTargets;
+	
+	private IntBuffer directKs;
+	
+	/*
+	 * A table where every letter is a class of its own
+	 */
+	public DNATransitionTable(int letterCount)
+	{
+		this(identity(letterCount));
+	}
+	
+	public DNATransitionTable(int[] letterClasses)
+	{
+		this(letterClasses, false);
+	}
+	
+	/*
+	 * A table kept in direct buffers when offHeap is set
+	 */
+	public DNATransitionTable(int[] letterClasses, boolean offHeap)
+	{
+		this.letterCount = letterClasses.length;
+		this.letterClasses = letterClasses.clone();
+		
+		for(int letterClass : letterClasses)
+		{
+			classCount = Math.max(classCount, letterClass + 1);
+		}
+		
+		representatives = new int[classCount];
+		Arrays.fill(representatives, -1);
+		
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			if(representatives[letterClasses[letter]] < 0)
+				representatives[letterClasses[letter]] = letter;
+		}
+		
+		int capacity = Math.max(16 * classCount, 1);
+		
+		if(offHeap)
+		{
+			directTargets = allocateDirect(capacity);
+			directKs = allocateDirect(capacity);
+		}
+		else
+		{
+			targets = new int[capacity];
+			ks = new int[capacity];
+			
+			Arrays.fill(targets, -1);
+		}
+	}
+	
+	/*
+	 * A direct buffer of the given number of ints, all -1
+	 */
+	private static IntBuffer allocateDirect(int length)
+	{
+		IntBuffer buffer = ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder()).asIntBuffer();
+		
+		for(int pos = 0; pos < length; pos++)
+		{
+			buffer.put(pos, -1);
+		}
+		
+		return buffer;
+	}
+	
+	private static int[] identity(int letterCount)
+	{
+		int[] letterClasses = new int[letterCount];
+		
+		for(int letter = 0; letter < letterCount; letter++)
+		{
+			letterClasses[letter] = letter;
+		}
+		
+		return letterClasses;
+	}
+	
+	/*
+	 * Sets the transition of the state with the letter, and so with every letter of its class
+	 */
+	public void set(int state, int letter, int target, int k)
+	{
+		int pos = state * classCount + letterClasses[letter];
+		
+		if(pos >= capacity())
+		{
+			grow(pos + 1);
+		}
+		
+		if(targets != null)
+		{
+			targets[pos] = target;
+			ks[pos] = k;
+		}
+		else
+		{
+			directTargets.put(pos, target);
+			directKs.put(pos, k);
+		}
+	}
+	
+	/*
+	 * Makes room for the transitions of the given number of states, so that set
+	 * can be called for different states from several threads at once.
+	 */
+	public void ensureCapacity(int stateCount)
+	{
+		if(stateCount * classCount > capacity())
+		{
+			grow(stateCount * classCount);
+		}
+	}
+	
+	private int capacity()
+	{
+		return targets != null ? targets.length : directTargets.capacity();
+	}
+	
+	private void grow(int minLength)
+	{
+		int oldLength = capacity();
+		int newLength = Math.max(oldLength * 2, minLength);
+		
+		if(targets != null)
+		{
+			targets = Arrays.copyOf(targets, newLength);
+			ks = Arrays.copyOf(ks, newLength);
+			Arrays.fill(targets, oldLength, newLength, -1);
+		}
+		else
+		{
+			directTargets = allocateDirect(newLength).put(directTargets.clear()).clear();
+			directKs = allocateDirect(newLength).put(directKs.clear()).clear();
+		}
+	}
+	
+	public int getTarget(int state, int letter)
+	{
+		int pos = state * classCount + letterClasses[letter];
+		
+		return targets != null ? targets[pos] : directTargets.get(pos);
+	}
+	
+	public int getK(int state, int letter)
+	{
+		int pos = state * classCount + letterClasses[letter];
+		
+		return ks != null ? ks[pos] : directKs.get(pos);
+	}
+	
+	public boolean isOffHeap() {return targets == null;}
+	
+	/*
+	 * Bytes of direct memory the table takes, 0 on the heap
+	 */
+	public long getDirectBytes() {return targets != null ? 0 : 8L * directTargets.capacity();}
+	
+	public int getLetterCount() {return letterCount;}
+	
+	public int[] getLetterClasses() {return letterClasses.clone();}
+	
+	public int getClassCount() {return classCount;}
+	
+	/*
+	 * The first letter of a class
+	 */
+	public int getRepresentative(int letterClass) {return representatives[letterClass];}
+	
+}
@@ -1,17 +1,14 @@
 package automata.nsa;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
 
 /*
- * Represents a tree(state) in a DNA. 
- * For convenience of the construction, we switch between two different representations of the tree.
- * One using a linked tree, and the other using the standard two array representation.
+ * Represents a tree(state) in a DNA. The tree is always packed: its nodes are 0..count-1, and a parent comes
+ * before its children. It is kept in the compact encoding of DNATreeCodec (the two array representation plus
+ * the annotations, trimmed to the tree and narrowed), and expanded back into arrays by the DNATransitionEngine
+ * of the NSA only when a transition is computed.
+ * When the NSA shares trees (see NSA.enableSharedTrees), the tree is kept as the root of its shared nodes instead,
+ * and encoded only when the code is asked for.
  */
 public class DNATree {
 	
@@ -21,29 +18,24 @@ public class DNATree {
 	private NSA nsa;
 	
 	/*
-	 * The root of the linked tree representation
+	 * The encoded tree: parents, states map and node annotations (templars denoted by -1, and phi by -2)
 	 */
-	private DNATreeNode root;
+	private byte[] code;
 	
 	/*
-	 * Array representing the tree. Undefined values are Integer.MAX_VALUE.
+	 * The root of the shared nodes of the tree, null unless the NSA shares trees, in which case the code is null
 	 */
-	private int[] tree; //active only from index 1
-	
-	/*
-	 * Array representing the states. Undefined values are Integer.MAX_VALUE.
-	 */
-	private int[] statesMap;
+	private DNATreeNode root;
 	
 	/*
-	 * Node Annotation. Templars denoted by -1, and phi by -2. Undefined values are Integer.MAX_VALUE.
+	 * The index of the tree in the DNA. Used by NSA.convertToDNA
 	 */
-	private int[] annotations;
+	private int treeIndex = -1;
 	
 	/*
-	 * The index of the tree in the DNA. Used by NSA.convertToDNA
+	 * Hash of the part of the code that identifies the state, see equals
 	 */
-	private int treeIndex = -1;
+	private int hash;
 	
 	public int getTreeIndex() {
 		return treeIndex; 
@@ -56,523 +48,179 @@ public class DNATree {
 	
 	public String toString()
 	{
-		String treeOutput, statesOutput, annotationOutput;
+		DNATreeCodec codec = nsa.getTreeCodec();
+		byte[] code = getCode();
+		int count = codec.getCount(code);
+		StringBuilder output = new StringBuilder("[0");
 		
-		statesOutput = "[";
-		for(int i = 0; i < statesMap.length;i++)
+		for(int i = 2; i < nsa.getNPrime();i++) 
 		{
-			statesOutput += statesMap[i] < tree.length ? Integer.toString(statesMap[i]) : "$";
-			if(i < statesMap.length - 1)
-			{
-				statesOutput += " ";
-			}
+			output.append(' ').append(i < count ? codec.getParent(code, i) : 0);
 		}
-		statesOutput += "]";
 		
-		treeOutput = "[0";
-		for(int i = 2; i < nsa.getNPrime();i++) 
+		output.append("],[");
+		
+		for(int i = 0; i < nsa.getStateCount();i++)
 		{
-				treeOutput += " ";
-				
-				if(tree[i] < tree.length)
-					treeOutput += Integer.toString(tree[i]);	
-				else
-					treeOutput += '0';
+			int node = codec.getState(code, i);
+			
+			if(i > 0)
+				output.append(' ');
+			
+			if(node == Integer.MAX_VALUE)
+				output.append('$');
+			else
+				output.append(node);
 		}
-		treeOutput += "]";
 		
+		output.append("],[");
 		
-		annotationOutput = "[";
-		for(int i = 0; i < annotations.length && annotations[i] < tree.length;i++)
+		for(int i = 0; i < count && codec.getAnnotation(code, i) != Integer.MAX_VALUE;i++)
 		{	
-				if(i > 0)
-				{
-					 annotationOutput += " ";
-				}
-				
-				if(annotations[i] >= 0)
-					annotationOutput += Integer.toString(annotations[i]);
-				else if(annotations[i] == -1)
-					annotationOutput += '+';
-				else if(annotations[i] == -2)
-					annotationOutput += 'f';
-					
+			int annotation = codec.getAnnotation(code, i);
+			
+			if(i > 0)
+				output.append(' ');
+			
+			if(annotation >= 0)
+				output.append(annotation);
+			else if(annotation == -1)
+				output.append('+');
+			else if(annotation == -2)
+				output.append('f');
 		}
-		annotationOutput += "]";
 		
-		return treeOutput + ',' + statesOutput + ',' + annotationOutput;
+		return output.append(']').toString();
 	}
 	
 	/*
-	 * Generates Q0 of the DNA related to the given NSA. With non-fully initialized array representation.
+	 * Two trees are the same DNA state exactly when their labels (toString) are equal.
+	 * The label shows all of the code but the parents of the nodes from N' on (see DNATreeCodec),
+	 * so the comparison and the hash are on the code without those.
+	 * Shared trees with the same label have the same root (see NSA.internRoot), so they are compared by their roots.
 	 */
-	public DNATree(NSA nsa)
+	@Override
+	public boolean equals(Object other)
 	{
-		this.nsa = nsa;
+		if(this == other)
+			return true;
 		
-		root = new DNATreeNode(nsa.getStartStates(), 0, null, 0,null);
+		if(!(other instanceof DNATree))
+			return false;
 		
-		tree = new int[3*nsa.getNPrime()];
-		annotations = new int[3*nsa.getNPrime()];
-		statesMap = new int[nsa.getStateCount()];
+		DNATree otherTree = (DNATree) other;
 		
-		Arrays.fill(tree, Integer.MAX_VALUE);
-		Arrays.fill(statesMap, Integer.MAX_VALUE);
-		Arrays.fill(annotations, Integer.MAX_VALUE);
-		
-		for(Integer state : root.states)
-		{
-			statesMap[state] = 0;
-		}
+		if(root != null)
+			return root == otherTree.root;
 		
-		annotations[0] = 0;
-	}
-	
-	/*
-	 * Generates the transition(tree and number k) from this tree with input character sigma
-	 * (sigma can be a string)
-	 */
-	public DNATransition transition(String sigma)
-	{
-		DNATree ret = new DNATree(this.nsa); //Generate a new tree
-		ret.tree = this.tree.clone();      
-		ret.statesMap = this.statesMap.clone(); //Clone the array representation
-		ret.annotations = this.annotations.clone();
-	    int k = ret.applyTransition(sigma);     //Use the private helper function applyTransition
+		DNATreeCodec codec = nsa.getTreeCodec();
 		
-		return new DNATransition(this, ret, k);
+		return hash == otherTree.hash
+				&& Arrays.equals(code, 0, codec.getLabelLength(code), otherTree.code, 0, codec.getLabelLength(otherTree.code));
 	}
 	
-	private int applyTransition(String sigma)
+	@Override
+	public int hashCode()
 	{
-		int[] availableAnnotations = new int[this.annotations.length];
-		Arrays.fill(availableAnnotations,Integer.MAX_VALUE);
-		
-		this.updateTree();  
-		root.recSpawn(sigma);  // Perform spawn stage
-		this.fixSeniority(availableAnnotations);   
-		
-		return this.fixUnique(availableAnnotations);  //Perform uniqueness and packing stage and return the number k.
+		return hash;
 	}
 	
 	/*
-	 * Updates the linked tree representation given an updated array representation
+	 * Generates Q0 of the DNA related to the given NSA.
 	 */
-	private void updateTree()
+	public DNATree(NSA nsa)
 	{
-		DNATreeNode[] treeArray = new DNATreeNode[tree.length];
+		long[] startStates = nsa.getStartStates();
+		int[] statesMap = new int[nsa.getStateCount()];
 		
-		for(int i = 0; i < tree.length;i++)
-		{
-			if(tree[i] < tree.length|| i == 0)
-			{
-				treeArray[i] = new DNATreeNode(null,i,null,annotations[i],null);	
-			}
-			if(tree[i] < tree.length)
-			{
-				treeArray[tree[i]].children.add(treeArray[i]);
-				
-				treeArray[i].parent = treeArray[tree[i]];
-				
-				treeArray[i].excluded.addAll(treeArray[tree[i]].excluded);
-				
-				if(annotations[tree[i]] == -1)                                    //Setting excluded
-				{
-					treeArray[i].excluded.add(treeArray[tree[tree[i]]].annotation);	
-				}
-			}
-		}
+		Arrays.fill(statesMap, Integer.MAX_VALUE);
 		
-		for(int i = 0; i < statesMap.length;i++)
+		for(int state = BitSets.nextSetBit(startStates, 0); state >= 0; state = BitSets.nextSetBit(startStates, state + 1))
 		{
-			if(statesMap[i] < tree.length)
-			{
-				int node = statesMap[i];
-				while(node < tree.length)
-				{
-					treeArray[node].states.add(i);
-					node = tree[node];
-				}
-			}
+			statesMap[state] = 0;
 		}
 		
-		
-		this.root = treeArray[0];
+		init(nsa, nsa.getTreeCodec().encode(new int[] {Integer.MAX_VALUE}, statesMap, new int[] {0}, 1));
 	}
 	
 	/*
-	 * Perform seniority fix stage
+	 * A tree given by its encoding
 	 */
-	private void fixSeniority(int[] availableAnnotations)
+	DNATree(NSA nsa, byte[] code)
 	{
-		Arrays.fill(tree, Integer.MAX_VALUE);
-		Arrays.fill(statesMap, Integer.MAX_VALUE);
-		Arrays.fill(this.annotations, Integer.MAX_VALUE);
-		Arrays.fill(availableAnnotations, Integer.MAX_VALUE);
-		
-		this.root.recBuildTreeArray(this.tree, this.annotations, availableAnnotations);
-		
-		for(int state = 0; state < statesMap.length; state++)
-		{
-			DNATreeNode node = this.root;
-			
-			while(node != null)
-			{
-				DNATreeNode child = null;
-				node.children.sort(new Comparator<DNATreeNode>() {
-					@Override
-					public int compare(DNATreeNode o1, DNATreeNode o2) {	
-					if(o1.annotation == -1)      {return 1;}
-					
-					else if(o2.annotation == -1) { return -1;}
-					else                         {return o1.index - o2.index;}	
-					
-					}
-				});;
-										
-				for(DNATreeNode dtn : node.children)
-				{
-					if(dtn.states.contains(state))
-					{
-						child = dtn;
-						break;
-					}
-				}
-				
-				if(child == null)
-				{
-					if(node.states.contains(state)) 
-						statesMap[state] = node.index;	
-					node = null;
-				}
-				else
-				{
-					node = child;
-				}
-				
-			}
-		}
+		init(nsa, code);
 	}
-
+	
 	/*
-	 * Performs the uniqueness and packing fixing stages
+	 * A shared tree given by its root
 	 */
-	private int fixUnique(int[] availableAnnotations)
+	private DNATree(NSA nsa, DNATreeNode root)
 	{
-		boolean[] hasUnique = new boolean[tree.length];
-		boolean[] isDead = new boolean[tree.length];
-		
-		boolean[] isEmpty = new boolean[tree.length];
-		boolean[] hasTemplarChild = new boolean[tree.length];
-		
-		Arrays.fill(hasUnique, false);
-		Arrays.fill(isDead, false);
-		
-		Arrays.fill(isEmpty, true);
-		Arrays.fill(hasTemplarChild, false);
-		
-		int k = Integer.MAX_VALUE;
-		
-		for(int i = 0; i < statesMap.length;i++)
-		{
-			if(statesMap[i] < tree.length)
-			{
-				hasUnique[statesMap[i]] = true;                         //Find all nodes with no uniqueness
-			}
-		}
-		
-		for(int i = isEmpty.length-1; i >= 0; i--)                    //Find all non empty nodes
-		{
-			if(hasUnique[i])
-				isEmpty[i] = false;
-			
-			if(tree[i] < tree.length && !isEmpty[i])
-			{	
-				isEmpty[tree[i]] = false;
-			}
-		}
-		
-		for(int i = 0 ;i < tree.length; i++)                     //Find all nodes with a non empty templar child
-		{
-			if(tree[i] < tree.length)
-			{
-				if(annotations[i] == -1 && !isEmpty[i])
-					hasTemplarChild[tree[i]] = true;
-			}
-		}
-		
-		
-		for(int i = 0; i < annotations.length; i ++)             //Update annotation if becoming green
-		{
-			if(!hasUnique[i] && !hasTemplarChild[i] && annotations[i] >= 0) 
-				this.annotations[i] = availableAnnotations[i];
-		}
-		
-		for(int i = 1; i < tree.length; i++)
-		{
-			if(tree[i] < tree.length)
-			{
-				if(isDead[tree[i]])                      //Mark all nodes whose father has no unique as dead and adjust pointers
-				{
-					isDead[i] = true; 
-					tree[i] = tree[tree[i]];
-				}
-				
-				else if(!hasUnique[tree[i]] && !hasTemplarChild[tree[i]] && annotations[tree[i]] >= 0)
-				{
-					isDead[i] = true; //Parent(tree[i]) loses this child, since he's gone green
-				}	
-			}
-		}
-		
-		for(int i = 0; i < statesMap.length;i++)
-		{
-			if(statesMap[i] < tree.length && isDead[statesMap[i]])                 //Fix the state map
-			{
-				statesMap[i] = tree[statesMap[i]];
-			}
-			
-		}
-		
-		Arrays.fill(isEmpty, true);
+		this.nsa = nsa;
+		this.root = root;
+		this.hash = root.hashCode();
+	}
+	
+	private void init(NSA nsa, byte[] code)
+	{
+		this.nsa = nsa;
 		
-		for(int i = 0; i < statesMap.length;i++)
+		if(nsa.isSharingTrees())
 		{
-			if(statesMap[i] < tree.length)
-			{
-				isEmpty[statesMap[i]] = false;                         //Find all nodes with no uniqueness
-			}
+			this.root = nsa.getTransitionEngine().share(code);
+			this.hash = root.hashCode();
+			return;
 		}
 		
-		for(int i = isEmpty.length-1; i >= 0; i--)                    //Find all non empty nodes
-		{	
-			if(tree[i] < tree.length && !isEmpty[i])
-			{	
-				isEmpty[tree[i]] = false;
-			}
-		}
-		
-		for(int i = 1; i < tree.length;i++)                                //Remove empty nodes
-		{
-			if(isEmpty[i])
-			{
-				tree[i] = Integer.MAX_VALUE;
-			}
-			
-		}
+		this.code = code;
 		
+		int labelLength = nsa.getTreeCodec().getLabelLength(code);
+		int h = 1;
 		
-		for(int i = 0; i < isEmpty.length && k == Integer.MAX_VALUE;i++)     //Find k from g and b
+		for(int i = 0; i < labelLength; i++)
 		{
-			if(isEmpty[i])
-			{
-				k = 2*i;
-			}
-			
-			else if((!hasUnique[i] && !hasTemplarChild[i] && annotations[i] >= 0) || annotations[i] == -2)
-			{	
-				k = 2*i + 1;
-			}
+			h = 31 * h + code[i];
 		}
 		
-		
-		
-		//--------------------------------------------------End of uniqueness, beginning partition fix---------------------------------------------
-		
-		int[] newTreeIndices = new int[tree.length];
-		int count = 1;
-		
-		for(int i = 1;i < tree.length;i++)
-		{
-			if(tree[i] < tree.length)
-			{
-				newTreeIndices[i] = count;
-				tree[count] = newTreeIndices[tree[i]];
-				annotations[count] = annotations[i];
-				count++;
-			}
-		}
-		
-		for(int i = 0;i < statesMap.length;i++)
-		{
-			if(statesMap[i] < tree.length)
-			{
-				statesMap[i] = newTreeIndices[statesMap[i]];
-			}
-		}
-		
-		
-		Arrays.fill(tree,count,tree.length,Integer.MAX_VALUE);
-		Arrays.fill(annotations,count,tree.length,Integer.MAX_VALUE);		
-		
-		
-		return k;
+		this.hash = h;
 	}
 	
+	/*
+	 * The encoded tree, see DNATreeCodec. Must not be modified.
+	 */
+	byte[] getCode() {return code != null ? code : nsa.getTransitionEngine().encode(root);}
+	
+	/*
+	 * The length of the encoded tree, without encoding a shared tree
+	 */
+	int getEncodedLength() {return code != null ? code.length : nsa.getTreeCodec().getLength(root.size);}
 	
 	/*
-	 * A nested class for a node of the linked tree representation
+	 * Generates the transition(tree and number k) from this tree with input character sigma
+	 * (sigma can be a string)
 	 */
-	private class DNATreeNode
+	public DNATransition transition(String sigma)
 	{
-		private List<DNATreeNode> children;
-		private DNATreeNode parent; 
-		
-		private Set<Integer> states;
-		private int index;  //Index in the array representation
-		
-		private Set<Integer> excluded; //Annotations forbidden for the node
-		private int annotation;
-		
-		
-		private void applyTransition(String sigma)
-		{
-			states = nsa.transitionFunction(states,this.excluded ,sigma);
-		}
-		
-		private DNATreeNode(Set<Integer> states, int index, Set<Integer> excluded, int annotation, DNATreeNode parent)
-		{
-			if(states == null)
-			{
-				this.states = new HashSet<Integer>();
-			}
-			else
-			{
-				this.states = new HashSet<Integer>(states);
-			}
-			
-			if(excluded == null)
-			{
-				this.excluded = new HashSet<Integer>();
-			}
-			else
-			{
-				this.excluded = new HashSet<Integer>(excluded);
-			}
-			
-			this.index = index;
-			this.children = new ArrayList<DNATreeNode>();
-			
-			this.annotation = annotation;
-			
-			this.parent = parent;
-		}
+		return transition(nsa.getSymbolId(sigma));
+	}
 	
-		/*
-		 * Recursively performs the spawn stage on the tree
-		 */
-		private void recSpawn(String sigma)
-		{
-			
-			if(!children.isEmpty())
-			{
-				for(DNATreeNode node : children)
-				{
-					node.recSpawn(sigma);
-				}
-			}
-			
-			this.applyTransition(sigma);
-				
-			
-			if(this.annotation == -1)            //Special's child
-			{
-				Set<Integer> available = this.availableAnnotations();
-				available.remove(this.parent.annotation);
-				int newAnnotation;
-				
-				if(available.isEmpty())
-					newAnnotation = -2; //-2 means phi
-				else
-					newAnnotation = Collections.min(available);
-				
-				DNATreeNode spawned = new DNATreeNode(
-						this.states, this.index + nsa.getNPrime(),this.excluded,newAnnotation,this );
-				spawned.excluded.add(this.parent.annotation);
-				this.children.add(spawned);
-				
-			}
-			
-			else if(this.annotation >= 0)
-			{
-				if(this.children.isEmpty()) //Spawn: Special
-				{
-					DNATreeNode specialSpawned = new DNATreeNode(this.states, this.index + 2*nsa.getNPrime(),this.excluded,-1 ,this);
-					this.children.add(specialSpawned);
-				}
-				
-				DNATreeNode spawned = new DNATreeNode(
-						this.states, this.index + nsa.getNPrime(),this.excluded, this.nextAvailableAnnotation(),this);
-				nsa.retainGreen(spawned.states, this.annotation);
-				this.children.add(spawned);
-				
-			}
-				
-		
-		}
-		
-		/*
-		 * Recursively generates the corresponding array for the tree. (Does not update stateMap array)
-		 */
-		private void recBuildTreeArray(int[] tree, int[] annotations, int[] availableAnnotations) 
-		{
-			annotations[this.index] = this.annotation;
-			availableAnnotations[this.index] = this.nextAvailableAnnotation();
-			
-			for(DNATreeNode child : this.children)
-			{
-				tree[child.index] = this.index;
-				child.recBuildTreeArray(tree,annotations, availableAnnotations);
-			}
-		}	
-		
-		/*
-		 * Annotations not forbidden for the node
-		 */
-		private Set<Integer> availableAnnotations()
-		{
-			Set<Integer> available = new HashSet<Integer>();
-			
-			for(int i = 0; i < nsa.getAnnotationCount();i++)
-			{
-				available.add(i);
-			}
-			
-			available.removeAll(this.excluded);
-			
-			return available;
-		}
+	/*
+	 * Same as transition(String), with the letter given by its symbol id in the NSA
+	 */
+	public DNATransition transition(int sigma)
+	{
+		DNATransitionEngine engine = nsa.getTransitionEngine();
 		
-		/*
-		 * Next available annotation, in case node went green
-		 */
-		private int nextAvailableAnnotation() 
+		if(root != null)
 		{
-			Set<Integer> available = this.availableAnnotations();
-						
-			if(available.isEmpty())
-				return Integer.MAX_VALUE;
+			int k = engine.apply(root, sigma);
 			
-			else
-			{
-				for(int i = this.annotation + 1; i < nsa.getAnnotationCount() * 2 + 1; i++)
-				{
-					int anot = i % nsa.getAnnotationCount();
-					
-					if(available.contains(anot))
-						return anot;
-				}
-			}
-			
-			return Integer.MAX_VALUE;
+			return new DNATransition(this, new DNATree(nsa, engine.getSharedResult()), k);
 		}
 		
-		//Used for debugging
-		public String toString()
-		{
-			return this.states.toString();
-		}
+		int k = engine.apply(code, sigma);
 		
+		return new DNATransition(this, new DNATree(nsa, engine.getResult()), k);
 	}
 	
 	/*
@@ -0,0 +1,168 @@
+package automata.nsa;
+
+/*
+ * The compact encoding of a packed DNA tree, as kept by every explored DNATree.
+ * A tree with count nodes is one byte array of 2*count + N entries (N being the number of NSA states):
+ *
+ *   count, annotations[0..count-1], statesMap[0..N-1], tree[1..count-1]
+ *
+ * Each entry takes 1, 2 or 4 bytes, the least width able to hold 3*N'+2 (the width is fixed per NSA).
+ * A value v is stored as v+3, so that templar (-1) and phi (-2) fit, and undefined (Integer.MAX_VALUE) is stored as 0.
+ * The parents come last, so that the part of the tree that toString leaves out (parents of nodes from N' on) is a suffix.
+ */
+final class DNATreeCodec {
+
+	private int width;
+
+	private int stateCount;
+
+	private int nPrime;
+
+	DNATreeCodec(NSA nsa)
+	{
+		this.stateCount = nsa.getStateCount();
+		this.nPrime = nsa.getNPrime();
+
+		int maxValue = 3 * nPrime + 2 + 3;
+
+		if(maxValue <= 0xFF)
+			width = 1;
+		else if(maxValue <= 0xFFFF)
+			width = 2;
+		else
+			width = 4;
+	}
+
+	/*
+	 * Encodes a packed tree with the given node count. The arrays may be longer than the tree.
+	 */
+	byte[] encode(int[] tree, int[] statesMap, int[] annotations, int count)
+	{
+		byte[] code = new byte[getLength(count)];
+		int pos = 0;
+
+		put(code, pos++, count);
+
+		for(int i = 0; i < count; i++)
+		{
+			put(code, pos++, annotations[i]);
+		}
+
+		for(int i = 0; i < stateCount; i++)
+		{
+			put(code, pos++, statesMap[i]);
+		}
+
+		for(int i = 1; i < count; i++)
+		{
+			put(code, pos++, tree[i]);
+		}
+
+		return code;
+	}
+
+	/*
+	 * Writes the encoded tree into the array representation. Entries from the node count on are not touched.
+	 * Returns the node count.
+	 */
+	int decode(byte[] code, int[] tree, int[] statesMap, int[] annotations)
+	{
+		int count = getCount(code);
+		int pos = 1;
+
+		for(int i = 0; i < count; i++)
+		{
+			annotations[i] = get(code, pos++);
+		}
+
+		for(int i = 0; i < stateCount; i++)
+		{
+			statesMap[i] = get(code, pos++);
+		}
+
+		tree[0] = Integer.MAX_VALUE;
+
+		for(int i = 1; i < count; i++)
+		{
+			tree[i] = get(code, pos++);
+		}
+
+		return count;
+	}
+
+	/*
+	 * The length in bytes of the code of a tree with the given node count
+	 */
+	int getLength(int count) {return (2 * count + stateCount) * width;}
+
+	int getCount(byte[] code) {return get(code, 0);}
+
+	int getAnnotation(byte[] code, int node) {return get(code, 1 + node);}
+
+	int getState(byte[] code, int state) {return get(code, 1 + getCount(code) + state);}
+
+	int getParent(byte[] code, int node) {return get(code, getCount(code) + stateCount + node);}
+
+	/*
+	 * The length in bytes of the part of the code that toString shows, which is what identifies the DNA state
+	 */
+	int getLabelLength(byte[] code)
+	{
+		return getLabelLength(code, code.length);
+	}
+
+	/*
+	 * Same as getLabelLength(byte[]), for a code in code[0..length)
+	 */
+	int getLabelLength(byte[] code, int length)
+	{
+		int hidden = Math.max(getCount(code) - Math.max(nPrime, 1), 0);
+
+		return length - hidden * width;
+	}
+
+	int getWidth() {return width;}
+
+	private void put(byte[] code, int entry, int value)
+	{
+		int stored = value == Integer.MAX_VALUE ? 0 : value + 3;
+		int pos = entry * width;
+
+		switch(width)
+		{
+		case 1:
+			code[pos] = (byte) stored;
+			break;
+		case 2:
+			code[pos] = (byte) (stored >>> 8);
+			code[pos + 1] = (byte) stored;
+			break;
+		default:
+			code[pos] = (byte) (stored >>> 24);
+			code[pos + 1] = (byte) (stored >>> 16);
+			code[pos + 2] = (byte) (stored >>> 8);
+			code[pos + 3] = (byte) stored;
+		}
+	}
+
+	private int get(byte[] code, int entry)
+	{
+		int pos = entry * width;
+		int stored;
+
+		switch(width)
+		{
+		case 1:
+			stored = code[pos] & 0xFF;
+			break;
+		case 2:
+			stored = ((code[pos] & 0xFF) << 8) | (code[pos + 1] & 0xFF);
+			break;
+		default:
+			stored = ((code[pos] & 0xFF) << 24) | ((code[pos + 1] & 0xFF) << 16) | ((code[pos + 2] & 0xFF) << 8) | (code[pos + 3] & 0xFF);
+		}
+
+		return stored == 0 ? Integer.MAX_VALUE : stored - 3;
+	}
+
+}
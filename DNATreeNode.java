@@ -0,0 +1,132 @@
+package automata.nsa;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A node of a DNA tree in the shared representation (see NSA.enableSharedTrees). A node is immutable, and
+ * hash-consed by the NSA (see NSA.internNode): the nodes with the same index, annotation, excluded annotations,
+ * states and children are one object, shared by every tree holding that subtree. Children are compared by pointer,
+ * as they are interned first.
+ *
+ * A node also keeps what the spawn stage computed for it, per letter class (see DNATransitionEngine.spawn), as that
+ * depends on nothing but the node: the image of its states, and the green states of the image for the green child.
+ */
+final class DNATreeNode {
+
+	/*
+	 * Index of the node in the packed tree, 0 for the root
+	 */
+	final int index;
+
+	/*
+	 * Annotation of the node: templar is -1 and phi is -2
+	 */
+	final int annotation;
+
+	/*
+	 * The annotations excluded at the node (bitmask), given by its ancestors
+	 */
+	final long excluded;
+
+	/*
+	 * The states of the subtree of the node. Must not be modified.
+	 */
+	final long[] states;
+
+	/*
+	 * The children by increasing index. Must not be modified.
+	 */
+	final DNATreeNode[] children;
+
+	/*
+	 * The number of nodes in the subtree
+	 */
+	final int size;
+
+	private final int hash;
+
+	/*
+	 * The spawn results by letter class, null until the first one is computed. Written without a lock: a thread
+	 * either sees a result or sees null and computes it again.
+	 */
+	private volatile AtomicReferenceArray<long[]> spawns;
+
+	DNATreeNode(int index, int annotation, long excluded, long[] states, DNATreeNode[] children)
+	{
+		this.index = index;
+		this.annotation = annotation;
+		this.excluded = excluded;
+		this.states = states;
+		this.children = children;
+
+		int size = 1;
+		int h = 31 * (31 * index + annotation) + Long.hashCode(excluded);
+
+		h = 31 * h + Arrays.hashCode(states);
+
+		for(DNATreeNode child : children)
+		{
+			size += child.size;
+			h = 31 * h + child.hash;
+		}
+
+		this.size = size;
+		this.hash = h;
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if(this == other)
+			return true;
+
+		if(!(other instanceof DNATreeNode))
+			return false;
+
+		DNATreeNode node = (DNATreeNode) other;
+
+		if(hash != node.hash || index != node.index || annotation != node.annotation || excluded != node.excluded
+				|| children.length != node.children.length || !Arrays.equals(states, node.states))
+			return false;
+
+		for(int i = 0; i < children.length; i++)
+		{
+			if(children[i] != node.children[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	/*
+	 * The spawn stage of the node with a letter of the class, null when not computed yet: the image of its states,
+	 * followed for a node with an annotation by the green states of the image. Must not be modified.
+	 */
+	long[] getSpawn(int letterClass)
+	{
+		AtomicReferenceArray<long[]> spawns = this.spawns;
+
+		return spawns == null ? null : spawns.get(letterClass);
+	}
+
+	void putSpawn(int letterClass, int letterClassCount, long[] spawn)
+	{
+		AtomicReferenceArray<long[]> spawns = this.spawns;
+
+		if(spawns == null)
+		{
+			spawns = new AtomicReferenceArray<long[]>(letterClassCount);
+			this.spawns = spawns;
+		}
+
+		spawns.set(letterClass, spawn);
+	}
+
+}
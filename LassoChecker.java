@@ -0,0 +1,230 @@
+package automata.nsa;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Checks ultimately periodic (lasso) words u.v^w against an NSA, by running them through its DNA.
+ * The DNA is computed lazily (see LazyDNA), and its cache is shared by all the words, so once the
+ * trees the words visit are cached a word costs a few cached lookups.
+ *
+ * A run reads u, then repeats v until the tree at the start of v repeats. The loop is then the iterations of v
+ * in between, and the word is accepted when the least k seen in the loop is odd (a node turned green),
+ * and rejected when it is even (a node was emptied).
+ *
+ * Words are given one per line as the letters of u, a '|' and the letters of v, letters separated by spaces,
+ * for example "a b | a". Empty lines and lines starting with '#' are skipped.
+ */
+public class LassoChecker {
+
+	/*
+	 * Words up to this number are checked by a single task
+	 */
+	private static final int TASK_SIZE = 16;
+
+	private NSA nsa;
+
+	private LazyDNA dna;
+
+	private int threads;
+
+	/*
+	 * A lasso word, with its letters as symbol ids
+	 */
+	public static class Word
+	{
+		private String text;
+		private int[] prefix;
+		private int[] period;
+
+		public Word(String text, int[] prefix, int[] period)
+		{
+			if(period.length == 0)
+				throw new IllegalArgumentException("Empty period in lasso word: " + text);
+
+			this.text = text;
+			this.prefix = prefix;
+			this.period = period;
+		}
+
+		/*
+		 * Parses a word of the form "u | v"
+		 */
+		public static Word parse(NSA nsa, String text)
+		{
+			int bar = text.indexOf('|');
+
+			if(bar < 0)
+				throw new IllegalArgumentException("Missing '|' in lasso word: " + text);
+
+			return new Word(text, parseLetters(nsa, text.substring(0, bar)), parseLetters(nsa, text.substring(bar + 1)));
+		}
+
+		private static int[] parseLetters(NSA nsa, String letters)
+		{
+			String trimmed = letters.trim();
+
+			if(trimmed.isEmpty())
+				return new int[0];
+
+			String[] symbols = trimmed.split("\\s+");
+			int[] ids = new int[symbols.length];
+
+			for(int i = 0; i < symbols.length; i++)
+			{
+				ids[i] = nsa.getSymbolId(symbols[i]);
+			}
+
+			return ids;
+		}
+
+		@Override
+		public String toString() {return text;}
+	}
+
+	public LassoChecker(NSA nsa, int cacheCapacity, int threads)
+	{
+		this.nsa = nsa;
+		this.dna = new LazyDNA(nsa, cacheCapacity);
+		this.threads = threads;
+	}
+
+	/*
+	 * Reads the words, one per line
+	 */
+	public List<Word> readWords(BufferedReader reader) throws IOException
+	{
+		List<Word> words = new ArrayList<Word>();
+		String line;
+
+		while((line = reader.readLine()) != null)
+		{
+			line = line.trim();
+
+			if(!line.isEmpty() && !line.startsWith("#"))
+				words.add(Word.parse(nsa, line));
+		}
+
+		return words;
+	}
+
+	public boolean accepts(Word word)
+	{
+		DNATree tree = dna.getInitial();
+
+		for(int letter : word.prefix)
+		{
+			tree = dna.step(tree, letter).resultState;
+		}
+
+		Map<DNATree, Integer> loopStarts = new HashMap<DNATree, Integer>();
+		List<Integer> leastKs = new ArrayList<Integer>();
+
+		while(true)
+		{
+			Integer first = loopStarts.putIfAbsent(tree, leastKs.size());
+
+			if(first != null)          //The iterations from first on repeat forever
+			{
+				int least = Integer.MAX_VALUE;
+
+				for(int iteration = first; iteration < leastKs.size(); iteration++)
+				{
+					least = Math.min(least, leastKs.get(iteration));
+				}
+
+				return least % 2 == 1;
+			}
+
+			int least = Integer.MAX_VALUE;
+
+			for(int letter : word.period)
+			{
+				DNATree.DNATransition transition = dna.step(tree, letter);
+
+				least = Math.min(least, transition.k);
+				tree = transition.resultState;
+			}
+
+			leastKs.add(least);
+		}
+	}
+
+	/*
+	 * Checks all the words, in parallel when there is more than one thread. Returns the results by word.
+	 */
+	public boolean[] check(List<Word> words)
+	{
+		boolean[] results = new boolean[words.size()];
+
+		if(threads <= 1)
+		{
+			for(int i = 0; i < words.size(); i++)
+			{
+				results[i] = accepts(words.get(i));
+			}
+
+			return results;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try
+		{
+			pool.invoke(new CheckTask(words, results, 0, words.size()));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		return results;
+	}
+
+	public LazyDNA getDNA() {return dna;}
+
+	/*
+	 * Checks a range of the words, splitting it in halves while it is large
+	 */
+	private class CheckTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private List<Word> words;
+		private boolean[] results;
+		private int from;
+		private int to;
+
+		private CheckTask(List<Word> words, boolean[] results, int from, int to)
+		{
+			this.words = words;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from <= TASK_SIZE)
+			{
+				for(int i = from; i < to; i++)
+				{
+					results[i] = accepts(words.get(i));
+				}
+			}
+			else
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new CheckTask(words, results, from, middle), new CheckTask(words, results, middle, to));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+package automata.nsa;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import automata.nsa.DNATree.DNATransition;
+
+/*
+ * The DNA of an NSA computed on the fly: transitions are computed when a word drives the DNA through them,
+ * instead of exploring every reachable tree first. Computed transitions are memoized per tree in a cache of at
+ * most capacity trees, so memory depends on the working set of the words and not on the size of the DNA.
+ * Trees are cached by their canonical state (see DNATree.equals).
+ *
+ * The cache is safe for concurrent use, and lookups take no locks. Trees are evicted by the clock (second chance)
+ * policy, an approximation of least recently used: a lookup marks its tree, and the eviction sweep clears marks
+ * and evicts the first tree it finds unmarked.
+ */
+public class LazyDNA {
+
+	private NSA nsa;
+
+	/*
+	 * The class of each letter: transitions are memoized per class (see NSA.getLetterClasses)
+	 */
+	private int[] letterClasses;
+
+	private int capacity;
+
+	private DNATree initial;
+
+	private ConcurrentMap<DNATree, CachedTree> cache;
+
+	/*
+	 * The position of the eviction sweep, guarded by this
+	 */
+	private Iterator<CachedTree> hand;
+
+	private LongAdder hits = new LongAdder();
+
+	private LongAdder misses = new LongAdder();
+
+	/*
+	 * The tree handed out for a state, and the transitions computed so far from it, by letter class.
+	 * A null target was not computed yet, the k of a target is written before it.
+	 */
+	private static class CachedTree
+	{
+		private DNATree tree;
+		private AtomicReferenceArray<DNATree> targets;
+		private int[] ks;
+		private volatile boolean referenced;
+
+		private CachedTree(DNATree tree, int classCount)
+		{
+			this.tree = tree;
+			targets = new AtomicReferenceArray<DNATree>(classCount);
+			ks = new int[classCount];
+		}
+	}
+
+	public LazyDNA(NSA nsa, int capacity)
+	{
+		if(capacity < 1)
+			throw new IllegalArgumentException("Cache capacity must be positive, got " + capacity);
+
+		this.nsa = nsa;
+		this.letterClasses = nsa.getLetterClasses();
+		this.capacity = capacity;
+		this.initial = new DNATree(nsa);
+		this.cache = new ConcurrentHashMap<DNATree, CachedTree>();
+	}
+
+	public DNATree getInitial() {return initial;}
+
+	/*
+	 * The transition from the tree with the letter sigma
+	 */
+	public DNATransition step(DNATree tree, String sigma)
+	{
+		return step(tree, nsa.getSymbolId(sigma));
+	}
+
+	/*
+	 * Same as step(DNATree, String), with the letter given by its symbol id in the NSA
+	 */
+	public DNATransition step(DNATree tree, int letter)
+	{
+		int letterClass = letterClasses[letter];
+		CachedTree cached = cache.get(tree);
+
+		if(cached != null)
+		{
+			if(!cached.referenced)
+				cached.referenced = true;
+
+			DNATree target = cached.targets.get(letterClass);
+
+			if(target != null)
+			{
+				hits.increment();
+				return new DNATransition(tree, target, cached.ks[letterClass]);
+			}
+		}
+
+		misses.increment();
+
+		DNATransition transition = tree.transition(letter);
+
+		if(cached == null)
+			cached = intern(tree);
+
+		transition.resultState = intern(transition.resultState).tree;     //Keep handing out the tree already cached for the state
+		cached.ks[letterClass] = transition.k;
+		cached.targets.set(letterClass, transition.resultState);
+
+		if(cache.size() > capacity)
+			evict();
+
+		return transition;
+	}
+
+	/*
+	 * The cache entry of the state of the tree, added if there is none
+	 */
+	private CachedTree intern(DNATree tree)
+	{
+		CachedTree cached = cache.get(tree);
+
+		if(cached == null)
+		{
+			CachedTree added = new CachedTree(tree, nsa.getLetterClassCount());
+
+			cached = cache.putIfAbsent(tree, added);
+
+			if(cached == null)
+				cached = added;
+		}
+
+		return cached;
+	}
+
+	private synchronized void evict()
+	{
+		while(cache.size() > capacity)
+		{
+			if(hand == null || !hand.hasNext())
+			{
+				hand = cache.values().iterator();
+
+				if(!hand.hasNext())
+					return;
+			}
+
+			CachedTree cached = hand.next();
+
+			if(cached.referenced)
+				cached.referenced = false;
+			else
+				hand.remove();
+		}
+	}
+
+	public long getHits() {return hits.sum();}
+
+	public long getMisses() {return misses.sum();}
+
+	/*
+	 * Fraction of the steps answered from the cache
+	 */
+	public double getHitRate()
+	{
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	/*
+	 * Number of trees in the cache
+	 */
+	public int size() {return cache.size();}
+
+}
@@ -1,15 +1,60 @@
 package automata.nsa;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
 
 /*
  * NSA to DNA converter.
  * Written by Niv Hoffman and Maor Prital
+ *
+ * Usage: MainClass [options] <input NSA> <output DNA>
+ *        MainClass [options] -batch <directory> <output directory>
+ *        MainClass [options] -batch <manifest file, or - for stdin>
+ *        MainClass [options] -serve <Unix socket path>
+ * The NSA may have at most 64 pairs (R_i/G_i lines), as the pairs excluded at a tree node are kept as one 64 bit
+ * mask; a larger NSA is rejected.
+ * Options:
+ *   -threads <n>   explore the DNA with n threads
+ *   -format <f>    format of the output DNA: graphviz (default) or binary (see DNAFile)
+ *   -trees         include the trees of the states in the binary format
+ *   -print         also print the DNA to stdout, in graphviz format
+ *   -minimize      merge the DNA states that give the same k for every word before the output (see DNAMinimizer)
+ *   -prune         determinize the NSA without its useless states and pairs (see NSA.prune())
+ *   -imagecache <n>  cache up to n images of the NSA transition function (see NSAImageCache)
+ *   -scc           take the states on no cycle of the NSA out of its red and green sets (see NSA.enableSccAware)
+ *   -offheap       keep the explored states off the heap (see DNAOffHeapStateStore)
+ *   -spill <file>  same as -offheap, spilling cold states to the given file
+ *   -shared        keep the trees as shared subtrees, spawning each subtree once per letter (see NSA.enableSharedTrees)
+ *   -accept <file> check the lasso words in the file instead (see LassoChecker), writing the results to the output
+ *   -cache <n>     trees cached while checking words, 65536 by default
+ *   -checkpoint <file>  checkpoint the exploration to the file, every minute by default (see DNACheckpoint)
+ *   -interval <s>  seconds between checkpoints
+ *   -resume        resume the exploration from the checkpoint file, when there is one
+ *   -previous <nsa> <dna>  reuse the DNA of the NSA before an edit, converted with -format binary -trees
+ *                  (see DNAReuse)
+ *   -metrics       print a summary of the time per stage, tree sizes and state lookups to stderr (see DNAMetrics)
+ *   -batch <source>  convert many NSAs in this JVM on -threads threads (see DNABatch): every .gv file of a
+ *                  directory, or the lines of input and output paths of a manifest file or stdin
+ *   -serve <path>  serve conversion jobs on a new Unix socket at the path, open to this user only, until shut down
+ *   -timeout <s>   stop a -batch or -serve job after this many seconds
+ *   -stats         print the parse throughput, the size of the DNA and the memory its states take to stderr
  */
 
 public class MainClass {
@@ -17,23 +62,412 @@ public class MainClass {
 	public static void main(String[] args) throws NumberFormatException, IOException {
 		
 		boolean printToFile = true;
+		int threads = 1;
+		boolean stats = false;
+		boolean printToStdout = false;
+		boolean binary = false;
+		boolean withTrees = false;
+		boolean offHeap = false;
+		boolean metrics = false;
+		boolean minimize = false;
+		boolean prune = false;
+		boolean sccAware = false;
+		boolean shared = false;
+		int imageCacheCapacity = 0;
+		String wordsPath = null;
+		int cacheCapacity = 1 << 16;
+		String spillPath = null;
+		String checkpointPath = null;
+		int checkpointSeconds = 60;
+		boolean resume = false;
+		String previousNsaPath = null;
+		String previousDnaPath = null;
+		String batchSource = null;
+		String serveAddress = null;
+		int timeoutSeconds = 0;
 		
-		String inputPath, outputPath, outputDNA;	
-		inputPath = args[0];
-		outputPath = args[1];		
+		int arg = 0;
+		while(arg < args.length && args[arg].startsWith("-"))
+		{
+			if(args[arg].equals("-threads"))
+				threads = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-stats"))
+				stats = true;
+			else if(args[arg].equals("-print"))
+				printToStdout = true;
+			else if(args[arg].equals("-format"))
+			{
+				String format = args[++arg];
+				
+				if(!format.equals("graphviz") && !format.equals("binary"))
+				{
+					System.out.println("Unknown format: " + format);
+					return;
+				}
+				
+				binary = format.equals("binary");
+			}
+			else if(args[arg].equals("-trees"))
+				withTrees = true;
+			else if(args[arg].equals("-accept"))
+				wordsPath = args[++arg];
+			else if(args[arg].equals("-cache"))
+				cacheCapacity = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-checkpoint"))
+				checkpointPath = args[++arg];
+			else if(args[arg].equals("-interval"))
+				checkpointSeconds = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-resume"))
+				resume = true;
+			else if(args[arg].equals("-previous"))
+			{
+				previousNsaPath = args[++arg];
+				previousDnaPath = args[++arg];
+			}
+			else if(args[arg].equals("-batch"))
+				batchSource = args[++arg];
+			else if(args[arg].equals("-serve"))
+				serveAddress = args[++arg];
+			else if(args[arg].equals("-timeout"))
+				timeoutSeconds = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-metrics"))
+				metrics = true;
+			else if(args[arg].equals("-minimize"))
+				minimize = true;
+			else if(args[arg].equals("-prune"))
+				prune = true;
+			else if(args[arg].equals("-imagecache"))
+				imageCacheCapacity = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-scc"))
+				sccAware = true;
+			else if(args[arg].equals("-offheap"))
+				offHeap = true;
+			else if(args[arg].equals("-spill"))
+			{
+				offHeap = true;
+				spillPath = args[++arg];
+			}
+			else if(args[arg].equals("-shared"))
+				shared = true;
+			else
+			{
+				System.out.println("Unknown option: " + args[arg]);
+				return;
+			}
+			arg++;
+		}
+		
+		if(batchSource != null || serveAddress != null)
+		{
+			DNABatch batch = new DNABatch(threads, timeoutSeconds * 1000L);
+			
+			batch.setBinary(binary, withTrees);
+			batch.setMinimize(minimize);
+			batch.setPrune(prune);
+			batch.setSccAware(sccAware);
+			
+			try
+			{
+				if(serveAddress != null)
+					serve(batch, serveAddress);
+				else
+					runBatch(batch, batchSource, arg < args.length ? args[arg] : null);
+			}
+			finally
+			{
+				batch.close();
+			}
+			
+			return;
+		}
+		
+		String inputPath, outputPath;	
+		inputPath = args[arg];
+		outputPath = args[arg+1];		
+		
+		if(metrics)
+			DNAMetrics.enable();
 		
 		NSA b = new NSA(inputPath);	
 		
-		outputDNA = b.convertToDNA();
+		if(sccAware)
+		{
+			b.enableSccAware();
+			
+			int transientCount = 0;
+			
+			for(long word : b.getTransientStates())
+			{
+				transientCount += Long.bitCount(word);
+			}
+			
+			System.err.println(String.format("SCC aware: %d of %d states are transient", transientCount, b.getStateCount()));
+		}
+		
+		if(prune)
+		{
+			NSA pruned = b.prune();
+			
+			System.err.println(String.format("Pruned NSA: %d states and %d pairs (N' = %d) to %d states and %d pairs (N' = %d)",
+					b.getStateCount(), b.getAnnotationCount(), b.getNPrime(), pruned.getStateCount(),
+					pruned.getAnnotationCount(), pruned.getNPrime()));
+			
+			b = pruned;
+		}
+		
+		if(imageCacheCapacity > 0)
+			b.enableImageCache(imageCacheCapacity);
+		
+		if(shared && offHeap)
+		{
+			System.out.println("-shared keeps the trees on the heap, it does not go with -offheap or -spill");
+			return;
+		}
+		
+		if(shared)
+			b.enableSharedTrees();
+		
+		if(wordsPath != null)
+		{
+			checkWords(b, wordsPath, outputPath, cacheCapacity, threads);
+			return;
+		}
+		
+		if(resume && checkpointPath == null)
+		{
+			System.out.println("-resume needs a -checkpoint file");
+			return;
+		}
+		
+		DNAOffHeapStateStore store = null;
+		DNACheckpoint checkpoint = null;
+		DNAFile previousDna = null;
+		DNAReuse reuse = null;
+		
+		if(previousNsaPath != null)
+		{
+			NSA previousNsa = new NSA(previousNsaPath);
+			
+			if(sccAware)
+				previousNsa.enableSccAware();
+			
+			if(prune)
+				previousNsa = previousNsa.prune();
+			
+			previousDna = new DNAFile(Paths.get(previousDnaPath));
+			
+			try
+			{
+				reuse = new DNAReuse(previousNsa, previousDna, b);
+			}
+			catch(IllegalArgumentException ex)
+			{
+				System.err.println("Not reusing the previous DNA: " + ex.getMessage());
+				previousDna.close();
+				previousDna = null;
+			}
+		}
+		
+		if(spillPath != null)
+			store = new DNAOffHeapStateStore(b, Paths.get(spillPath), DNAOffHeapStateStore.DEFAULT_SEGMENT_SIZE,
+					DNAOffHeapStateStore.DEFAULT_RESIDENT_SEGMENTS);
+		else if(offHeap)
+			store = new DNAOffHeapStateStore(b);
+		
+		try
+		{
+			DNAExplorer explorer = store == null ? new DNAExplorer(b, threads) : new DNAExplorer(b, threads, store);
+			
+			if(checkpointPath != null)
+			{
+				checkpoint = new DNACheckpoint(Paths.get(checkpointPath), b);
+				
+				if(resume && checkpoint.exists())
+				{
+					int expanded = explorer.resume(checkpoint);
+					
+					System.err.println(String.format("Resumed from %s: %d states, %d of them expanded", checkpointPath,
+							explorer.getStates().size(), expanded));
+				}
+				
+				explorer.setCheckpoint(checkpoint, checkpointSeconds * 1000L);
+			}
+			
+			if(reuse != null)
+				explorer.setReuse(reuse);
+			
+			explorer.explore();
+			
+			if(reuse != null)
+				System.err.println(String.format("Reused %d transitions of the previous DNA, computed %d",
+						reuse.getReused(), reuse.getComputed()));
+			
+			if(minimize)
+			{
+				int explored = explorer.getStates().size();
+				long start = System.nanoTime();
+				
+				explorer.minimize();
+				
+				int minimal = explorer.getStates().size();
+				
+				System.err.println(String.format("Minimized DNA: %d states to %d (%.1f%% fewer, %.1fx smaller) in %.1f ms",
+						explored, minimal, 100.0 * (explored - minimal) / explored, (double) explored / minimal,
+						(System.nanoTime() - start) / 1e6));
+			}
+			
+			if(stats)
+				printStats(b, explorer.getStates(), explorer.getTransitions());
+			
+			writeDNA(b, explorer, printToFile, printToStdout, binary, withTrees, outputPath);
+			
+			if(metrics)
+				DNAMetrics.printSummary(System.err);
+		}
+		finally
+		{
+			if(checkpoint != null)
+				checkpoint.close();
+			
+			if(store != null)
+				store.close();
+			
+			if(previousDna != null)
+				previousDna.close();
+		}
+	}
+	
+	/*
+	 * Runs the jobs of a directory (converted into the output directory), a manifest file or stdin ("-")
+	 */
+	private static void runBatch(DNABatch batch, String source, String outputDirectory) throws IOException
+	{
+		List<DNABatch.Job> jobs;
+		
+		if(Files.isDirectory(Paths.get(source)))
+		{
+			if(outputDirectory == null)
+			{
+				System.out.println("-batch of a directory needs an output directory");
+				return;
+			}
+			
+			jobs = batch.directoryJobs(Paths.get(source), Paths.get(outputDirectory));
+		}
+		else
+		{
+			try (BufferedReader reader = source.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+					: Files.newBufferedReader(Paths.get(source)))
+			{
+				jobs = DNABatch.readJobs(reader);
+			}
+			catch(IllegalArgumentException ex)
+			{
+				System.out.println(ex.getMessage());
+				return;
+			}
+		}
 		
-		System.out.println(outputDNA);
+		batch.run(jobs, new PrintWriter(System.out));
+	}
+	
+	/*
+	 * Serves jobs on a Unix socket at the path
+	 */
+	private static void serve(DNABatch batch, String address) throws IOException
+	{
+		if(address.matches("\\d+"))
+		{
+			System.out.println("Jobs are no longer served on a TCP port, give the path of a Unix socket instead");
+			return;
+		}
+		
+		Path socketPath = Paths.get(address);
+		ServerSocketChannel server = DNABatch.openSocket(socketPath);
+		
+		System.err.println(String.format("Serving DNA conversions on %s with %d threads", socketPath.toAbsolutePath(),
+				batch.getThreads()));
+		
+		try
+		{
+			batch.serve(server);
+		}
+		finally
+		{
+			server.close();
+			
+			if(socketPath != null)
+				Files.deleteIfExists(socketPath);
+		}
+	}
+	
+	/*
+	 * Checks the lasso words of the file, writing each word with its result to the output
+	 */
+	private static void checkWords(NSA b, String wordsPath, String outputPath, int cacheCapacity, int threads) throws IOException
+	{
+		LassoChecker checker = new LassoChecker(b, cacheCapacity, threads);
+		List<LassoChecker.Word> words;
+		
+		try (BufferedReader reader = new BufferedReader(new FileReader(wordsPath)))
+		{
+			words = checker.readWords(reader);
+		}
+		
+		long start = System.nanoTime();
+		boolean[] results = checker.check(words);
+		long nanos = System.nanoTime() - start;
+		int accepted = 0;
+		
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(outputPath))))
+		{
+			for(int i = 0; i < words.size(); i++)
+			{
+				bw.write(words.get(i) + "\t" + (results[i] ? "accepted" : "rejected") + System.lineSeparator());
 				
-	    if(printToFile)
+				if(results[i])
+					accepted++;
+			}
+		}
+		
+		System.err.println(String.format("Checked %d words: %d accepted, %d rejected in %.1f ms (%.0f words/s), cache hit rate %.1f%%",
+				words.size(), accepted, words.size() - accepted, nanos / 1e6, words.size() / Math.max(nanos / 1e9, 1e-9),
+				100 * checker.getDNA().getHitRate()));
+	}
+	
+	/*
+	 * Writes the explored DNA to the output file, and to stdout when asked to
+	 */
+	private static void writeDNA(NSA b, DNAExplorer explorer, boolean printToFile, boolean printToStdout, boolean binary,
+			boolean withTrees, String outputPath) throws IOException
+	{
+		if(printToStdout)
+		{
+			Writer stdout = new BufferedWriter(new OutputStreamWriter(System.out));
+			
+			b.convertToDNA(explorer, stdout);
+			stdout.write(System.lineSeparator());
+			stdout.flush();
+		}
+				
+	    if(printToFile && binary)
+	    {
+	    	try (OutputStream os = new FileOutputStream(new File(outputPath)))
+	    	{
+	    		b.convertToBinaryDNA(explorer, withTrees, os);
+	    	}
+	    	
+	    	catch (FileNotFoundException ex)
+	    	{
+	    		System.out.println(ex.toString());
+	    	}
+	    }
+	    
+	    else if(printToFile)
 	    {
 	    	try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(outputPath))))
 	    	{
-	    		bw.write(outputDNA);
-	    		bw.close();
+	    		b.convertToDNA(explorer, bw);
 	    	}
 	    	
 	    	catch (FileNotFoundException ex)
@@ -45,4 +479,40 @@ public class MainClass {
 	    
 	}	
 	
+	/*
+	 * Memory per state, estimated for a 64 bit JVM with compressed pointers: 16 bytes of array header,
+	 * objects aligned to 8 bytes (4 bytes of padding on average) and 32 bytes for the DNATree object itself. The array representation the states
+	 * were kept in before (three int arrays, two of them of length 3*N') is given for comparison.
+	 */
+	private static void printStats(NSA nsa, DNAStateStore states, DNATransitionTable transitions)
+	{
+		int count = states.size();
+		double encoded = (double) states.getEncodedBytes() / count;
+		long arrays = align(16 + 4L * 3 * nsa.getNPrime()) * 2 + align(16 + 4L * nsa.getStateCount());
+		
+		System.err.println(String.format("NSA parsed: %.1f MB at %.1f MB/s", nsa.getParseBytes() / 1e6, nsa.getParseThroughput()));
+		System.err.println(String.format("Letters: %d in %d classes", nsa.getAlphabetSize(), nsa.getLetterClassCount()));
+		System.err.println("DNA states: " + count);
+		
+		if(nsa.getImageCache() != null)
+			System.err.println(String.format("Image cache: %d hits, %d misses, hit rate %.1f%% of %d images",
+					nsa.getImageCache().getHits(), nsa.getImageCache().getMisses(), 100 * nsa.getImageCache().getHitRate(),
+					nsa.getImageCache().getCapacity()));
+		System.err.println(String.format("Encoded state: %.1f bytes (%d byte entries)", encoded, nsa.getTreeCodec().getWidth()));
+		
+		if(states instanceof DNAOffHeapStateStore)
+			System.err.println(String.format("Off-heap store: %.1f MB of direct memory, and %.1f MB for the transitions",
+					((DNAOffHeapStateStore) states).getDirectBytes() / 1e6, transitions.getDirectBytes() / 1e6));
+		else if(nsa.isSharingTrees())
+			System.err.println(String.format("Shared trees: %d distinct nodes, %.1f per state", nsa.getSharedNodeCount(),
+					(double) nsa.getSharedNodeCount() / count));
+		else
+			System.err.println(String.format("Heap per state: %.1f bytes, %d bytes as int arrays", 32 + encoded + 16 + 4, 32 + arrays));
+	}
+	
+	private static long align(long bytes)
+	{
+		return (bytes + 7) & ~7L;
+	}
+	
 }
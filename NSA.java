@@ -1,22 +1,21 @@
 package automata.nsa;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import automata.nsa.DNATree.DNATransition;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /*
@@ -29,255 +28,819 @@ public class NSA {
 	private int annotationCount;
 	
 	
-	private Set<Integer> startStates;
+	/*
+	 * State sets are bitsets, see BitSets
+	 */
+	private long[] startStates;
 	
-	private List<Set<Integer>> redSets;
-	private List<Set<Integer>> greenSets;
+	private long[][] redSets;
+	private long[][] greenSets;
+	
+	/*
+	 * The letters of the NSA. Each letter is interned to a dense symbol id, its index in this list.
+	 */
+	private List<String> symbols;
+	
+	private Map<String,Integer> symbolIds;
 	
 	/*
 	 *  Describes the transition function of the NSA, such that delta(q,sigma)
-	 *  is contained in transitionMap[sigma][q]
+	 *  is the set transitions[sigma][q], sigma being a symbol id
+	 */
+	private long[][][] transitions;
+	
+	/*
+	 * Letters with the same successors from every state are in the same class. Classes are numbered by the order
+	 * of their first letter, and the letters of a class share their transitions array.
+	 */
+	private int[] letterClasses;
+	
+	private int letterClassCount;
+	
+	/*
+	 * The states on no cycle of the NSA once the SCC aware mode is on, null before (see enableSccAware)
+	 */
+	private long[] transientStates;
+	
+	/*
+	 * Size of the input file and time it took to parse, see getParseThroughput
+	 */
+	private long parseBytes;
+	private long parseNanos;
+	
+	/*
+	 * The union of the red sets of every combination of excluded annotations met so far.
+	 * A combination is the bitmask having bit i on when annotation i is excluded.
+	 */
+	private ConcurrentMap<Long,long[]> excludedRedSets;
+	
+	/*
+	 * Same as excludedRedSets, indexed directly by the combination when there are few annotations
+	 */
+	private AtomicReferenceArray<long[]> excludedRedSetArray;
+	
+	/*
+	 * The images of transitionFunction computed so far, null unless enabled (see enableImageCache)
+	 */
+	private NSAImageCache imageCache;
+	
+	/*
+	 * The interned nodes of the shared trees, null unless enabled (see enableSharedTrees)
+	 */
+	private ConcurrentMap<DNATreeNode,DNATreeNode> sharedNodes;
+	
+	/*
+	 * The root of the first shared tree with each label, for the trees whose label leaves out part of the tree
+	 */
+	private ConcurrentMap<ByteBuffer,DNATreeNode> sharedRoots;
+	
+	/*
+	 * The compact encoding of the DNA trees of this NSA
+	 */
+	private DNATreeCodec treeCodec;
+	
+	/*
+	 * Scratch buffers for computing DNA transitions, one engine per thread
 	 */
-	private Map<String,List<Set<Integer>>> transitionMap;
+	private ThreadLocal<DNATransitionEngine> transitionEngines = new ThreadLocal<DNATransitionEngine>();
 
 	/*
 	 * A constructor for the NSA, receives a path to a file containing a graphviz format and generates
-	 * an NSA object. 
+	 * an NSA object. The file is scanned by NSAParser, then the transition tables are sized by the number of states.
 	 */
 	public NSA(String path) throws NumberFormatException, IOException {
-		stateCount = 0;
+		DNAEvents.ParseEvent event = new DNAEvents.ParseEvent();
+		event.begin();
 		
-		this.greenSets = new ArrayList<Set<Integer>>();
-		this.redSets = new ArrayList<Set<Integer>>();
-			
-		startStates = new HashSet<Integer>();
+		NSAParser parser = new NSAParser();
+		parser.parse(Paths.get(path));
+		
+		List<int[]> redSets = parser.getRedSets();
+		List<int[]> greenSets = parser.getGreenSets();
+		int[] startStates = parser.getStartStates();
+		
+		stateCount = parser.getStateCount();
+		symbols = parser.getSymbols();
+		symbolIds = new HashMap<String, Integer>();
+		parseBytes = parser.getBytes();
+		parseNanos = parser.getNanos();
+		
+		for(int symbol = 0; symbol < symbols.size(); symbol++)
+		{
+			symbolIds.put(symbols.get(symbol), symbol);
+		}
 		
-		transitionMap = new HashMap<String, List<Set<Integer>>>();
+		this.annotationCount = greenSets.size();	
 		
-		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File(path)));
+		if(annotationCount > 64)     //The excluded annotations of a node are one long (see DNATransitionEngine)
+			throw new IllegalArgumentException("At most 64 pairs are supported, got " + annotationCount);
 		
-		Pattern pstate_00 = Pattern.compile("(\\s+)q(\\d+) \\[label=\"q(\\d+)\"\\]"); //NOT starting, NOT accepting
-		//Pattern pstate_01 = Pattern.compile("(\\s+)q(\\d+) \\[label=\"q(\\d+)\\$\"\\]"); //NOT starting, accepting
-		Pattern pstate_10 = Pattern.compile("(\\s+)q(\\d+) \\[label=\"\\*q(\\d+)\"\\]"); //starting, NOT accepting
-		Pattern pstate_11 = Pattern.compile("(\\s+)q(\\d+) \\[label=\"\\*q(\\d+)\\$\"\\]"); //starting, accepting
-		Pattern ptransition = Pattern.compile("(\\s+)q(\\d+) -> q(\\d+) \\[label=(\\S+)\\]");
-		Pattern pSets = Pattern.compile("(\\S)_(\\d+) (.*)");
-		Matcher m; // get a matcher object
+		this.startStates = toBitSet(startStates);
+		this.redSets = new long[redSets.size()][];
+		this.greenSets = new long[greenSets.size()][];
+		this.transitions = new long[symbols.size()][][];
+		this.excludedRedSets = new ConcurrentHashMap<Long, long[]>();
 		
-		int fromState;
-		int toState;
-		String label;
-		String line;
-		while((line = bufferedReader.readLine()) != null) {
+		if(annotationCount <= 16)
+			this.excludedRedSetArray = new AtomicReferenceArray<long[]>(1 << annotationCount);
+		
+		for(int i = 0; i < redSets.size(); i++)
+		{
+			checkPairStates(redSets.get(i), "R_" + i);
+			this.redSets[i] = toBitSet(redSets.get(i));
+		}
+		
+		for(int i = 0; i < greenSets.size(); i++)
+		{
+			checkPairStates(greenSets.get(i), "G_" + i);
+			this.greenSets[i] = toBitSet(greenSets.get(i));
+		}
+		
+		for(int symbol = 0; symbol < symbols.size(); symbol++)
+		{
+			transitions[symbol] = new long[stateCount][];
 			
-			if((m = ptransition.matcher(line)).matches()) { //Transition line
-				fromState = Integer.parseInt(m.group(2));
-				toState = Integer.parseInt(m.group(3));
-				label = m.group(4);
-				
-				List<Set<Integer>> labelList;
-				
-				if(!transitionMap.containsKey(label))
-				{
-					labelList = new ArrayList<Set<Integer>>();
-					
-					for(int i = 0; i < stateCount;i++)
-					{
-						labelList.add(i, new HashSet<Integer>());
-					}
-					
-					transitionMap.put(label, labelList);
-				}
-				
-				else
-				{
-					labelList = transitionMap.get(label);
-				}
-				
-				
-				Set<Integer> tmp0 = labelList.get(fromState);
-				tmp0.add(toState);
+			for(int state = 0; state < stateCount; state++)
+			{
+				transitions[symbol][state] = BitSets.create(stateCount);
+			}
+		}
+		
+		for(int i = 0; i < parser.getTransitionCount(); i++)
+		{
+			int source = parser.getTransitionSource(i);
+			int target = parser.getTransitionTarget(i);
 			
+			if(source >= stateCount)
+				throw new IllegalArgumentException("Transition from an undefined state q" + source);
+			
+			if(target >= stateCount)
+				throw new IllegalArgumentException("Transition to an undefined state q" + target);
+			
+			BitSets.add(transitions[parser.getTransitionSymbol(i)][source], target);
+		}
+		
+		computeLetterClasses();
+		this.treeCodec = new DNATreeCodec(this);
+		
+		event.end();
+		
+		if(event.shouldCommit())
+		{
+			event.bytes = parseBytes;
+			event.states = stateCount;
+			event.letters = symbols.size();
+			event.transitions = parser.getTransitionCount();
+			event.commit();
+		}
+	}
+	
+	/*
+	 * The NSA with the states and pairs kept by the pruner, see prune()
+	 */
+	private NSA(NSA nsa, NSAPruner pruner)
+	{
+		int[] pairs = pruner.getKeptPairs();
+		
+		this.stateCount = pruner.getNewStateCount();
+		this.annotationCount = pairs.length;
+		this.symbols = nsa.symbols;
+		this.symbolIds = nsa.symbolIds;
+		this.parseBytes = nsa.parseBytes;
+		this.parseNanos = nsa.parseNanos;
+		this.startStates = renumber(nsa.startStates, pruner);
+		this.redSets = new long[pairs.length][];
+		this.greenSets = new long[pairs.length][];
+		this.transitions = new long[symbols.size()][stateCount][];
+		this.excludedRedSets = new ConcurrentHashMap<Long, long[]>();
+		
+		if(annotationCount <= 16)
+			this.excludedRedSetArray = new AtomicReferenceArray<long[]>(1 << annotationCount);
+		
+		for(int i = 0; i < pairs.length; i++)
+		{
+			this.redSets[i] = renumber(nsa.redSets[pairs[i]], pruner);
+			this.greenSets[i] = renumber(nsa.greenSets[pairs[i]], pruner);
+		}
+		
+		for(int symbol = 0; symbol < symbols.size(); symbol++)
+		{
+			for(int state = 0; state < nsa.stateCount; state++)
+			{
+				int newState = pruner.getNewId(state);
 				
+				if(newState >= 0 && transitions[symbol][newState] == null)     //Merged states have the same successors
+					transitions[symbol][newState] = renumber(nsa.transitions[symbol][state], pruner);
+			}
+		}
+		
+		computeLetterClasses();
+		this.treeCodec = new DNATreeCodec(this);
+	}
+	
+	private void computeLetterClasses()
+	{
+		Map<Integer, List<Integer>> classesByHash = new HashMap<Integer, List<Integer>>();   //Hash of the successors -> classes
+		List<Integer> representatives = new ArrayList<Integer>();
+		
+		letterClasses = new int[symbols.size()];
+		letterClassCount = 0;
+		
+		for(int symbol = 0; symbol < symbols.size(); symbol++)
+		{
+			int hash = Arrays.deepHashCode(transitions[symbol]);
+			List<Integer> candidates = classesByHash.get(hash);
+			
+			if(candidates == null)
+			{
+				candidates = new ArrayList<Integer>();
+				classesByHash.put(hash, candidates);
 			}
 			
+			letterClasses[symbol] = -1;
 			
-			else if((m = pSets.matcher(line)).matches())
+			for(int letterClass : candidates)
 			{
-				String color = m.group(1);
-				int index = Integer.parseInt(m.group(2));
-				String stateString = m.group(3);
-				String[] states = stateString.split(" ");
+				int representative = representatives.get(letterClass);
 				
-				Set<Integer> theSet = new HashSet<Integer>();
-				
-				if(color.equals("R"))
-					redSets.add(index, theSet);
-				else if (color.equals("G"))
-					greenSets.add(index, theSet);
-				else
-					System.out.println("Error:Bad input format");
-				
-				
-				
-				if (!stateString.equals("")) {
-					for (String state : states) {
-						theSet.add(Integer.parseInt(state));
-					}
+				if(Arrays.deepEquals(transitions[symbol], transitions[representative]))
+				{
+					letterClasses[symbol] = letterClass;
+					transitions[symbol] = transitions[representative];
+					break;
 				}
-				
-			
-				
 			}
 			
-			else { //State line	
-				
-				if((m = pstate_00.matcher(line)).matches()) { } //NOT starting, NOT accepting
-				
-					
-				else if((m = pstate_10.matcher(line)).matches()) //starting, NOT accepting
-					startStates.add(stateCount);
-				else if((m = pstate_11.matcher(line)).matches()) { //starting, accepting
-					
-					startStates.add(stateCount);
-				} else {continue;} //Cannot parse
-				
-				stateCount++;
+			if(letterClasses[symbol] < 0)
+			{
+				letterClasses[symbol] = letterClassCount++;
+				candidates.add(letterClasses[symbol]);
+				representatives.add(symbol);
 			}
 		}
-		bufferedReader.close();
+	}
+	
+	/*
+	 * A set of states of the original NSA as a set of states of the pruned one
+	 */
+	private long[] renumber(long[] states, NSAPruner pruner)
+	{
+		long[] set = BitSets.create(stateCount);
 		
+		for(int state = BitSets.nextSetBit(states, 0); state >= 0; state = BitSets.nextSetBit(states, state + 1))
+		{
+			if(pruner.getNewId(state) >= 0)
+				BitSets.add(set, pruner.getNewId(state));
+		}
+		
+		return set;
+	}
+	
+	/*
+	 * An equivalent NSA with fewer states and pairs, to determinize instead of this one: the states that are
+	 * unreachable or cannot reach an accepting cycle are dropped, bisimilar states are merged, and pairs left
+	 * with an empty red set are dropped (see NSAPruner). The alphabet stays the same.
+	 */
+	public NSA prune()
+	{
+		return new NSA(this, new NSAPruner(this));
+	}
+	
+	/*
+	 * Throws when the R_i or G_i set holds a state the NSA does not have, as toBitSet would take it silently
+	 */
+	private void checkPairStates(int[] states, String set)
+	{
+		for(int state : states)
+		{
+			if(state >= stateCount)
+				throw new IllegalArgumentException(set + " holds an undefined state q" + state);
+		}
+	}
+	
+	private long[] toBitSet(int[] states)
+	{
+		long[] set = BitSets.create(stateCount);
 		
-		this.annotationCount = this.greenSets.size();	
+		for(int state : states)
+		{
+			BitSets.add(set, state);
+		}
 		
+		return set;
 	}
 	
 	/*
 	 * Applies the transition function of the NSA on a set. Removing forbidden red sets.
+	 * The excluded annotations are given as a bitmask, bit i meaning annotation i is excluded.
+	 */
+	public long[] transitionFunction(long[] states, long excludedAnnotations, int sigma)
+	{
+		long[] result = BitSets.create(stateCount);
+		
+		transitionFunction(states, 0, excludedAnnotations, sigma, result, 0);
+		
+		return result;
+	}
+	
+	/*
+	 * Same as transitionFunction, for sets kept inside larger arrays: the states are read from source
+	 * starting at word sourceFrom, and the image is written to target starting at word targetFrom.
+	 * The two ranges must not overlap. Allocates nothing once the red set union is cached, but for a new image
+	 * put in the image cache.
 	 */
-	public Set<Integer> transitionFunction(Set<Integer> states,Set<Integer> excludedAnnotations ,String sigma)
+	void transitionFunction(long[] source, int sourceFrom, long excludedAnnotations, int sigma, long[] target, int targetFrom)
 	{
-		List<Set<Integer>> transitions;
-		Set<Integer> result = new HashSet<Integer>();
+		if(imageCache != null && imageCache.lookup(source, sourceFrom, excludedAnnotations, sigma, target, targetFrom))
+			return;
+		
+		long[][] successors = transitions[sigma];
+		int words = getStateWords();
 		
-		if(transitionMap.containsKey(sigma))
+		Arrays.fill(target, targetFrom, targetFrom + words, 0L);
+		
+		for(int w = 0; w < words; w++)
 		{
-			transitions = transitionMap.get(sigma);
+			for(long word = source[sourceFrom + w]; word != 0; word &= word - 1)
+			{
+				long[] successor = successors[(w << 6) + Long.numberOfTrailingZeros(word)];
+				
+				for(int i = 0; i < words; i++)
+				{
+					target[targetFrom + i] |= successor[i];
+				}
+			}
 		}
-		else
+		
+		if(excludedAnnotations != 0)
+		{
+			long[] red = excludedRedSet(excludedAnnotations);
+			
+			for(int i = 0; i < words; i++)
+			{
+				target[targetFrom + i] &= ~red[i];
+			}
+		}
+		
+		if(imageCache != null)
+			imageCache.store(source, sourceFrom, excludedAnnotations, sigma, target, targetFrom);
+	}
+	
+	/*
+	 * Caches up to capacity images of transitionFunction (see NSAImageCache). An image is a few bit operations per
+	 * state of the set, so the cache only pays off when the same wide sets come back often; it is off by default.
+	 * Must be called before converting.
+	 */
+	public void enableImageCache(int capacity)
+	{
+		imageCache = new NSAImageCache(getStateWords(), capacity);
+	}
+	
+	/*
+	 * The image cache, null unless enabled
+	 */
+	public NSAImageCache getImageCache() {return imageCache;}
+	
+	/*
+	 * Keeps the DNA trees as shared nodes instead of codes (see DNATreeNode): equal subtrees of all the trees are
+	 * stored once, two trees are the same state exactly when they have the same root, and the spawn stage of a node
+	 * is computed once per letter class. A node takes far more memory than its few bytes of code, and a transition
+	 * gives every node the image of its states, so a tree shares little with its successors: this only pays off
+	 * when many different trees hold the same subtrees. The interned nodes are never dropped, and a tree is encoded
+	 * whenever its code is needed (output, checkpoints). It is off by default. Must be called before converting.
+	 */
+	public void enableSharedTrees()
+	{
+		sharedNodes = new ConcurrentHashMap<DNATreeNode, DNATreeNode>();
+		sharedRoots = new ConcurrentHashMap<ByteBuffer, DNATreeNode>();
+	}
+	
+	public boolean isSharingTrees() {return sharedNodes != null;}
+	
+	/*
+	 * The number of distinct nodes of the shared trees
+	 */
+	public int getSharedNodeCount() {return sharedNodes == null ? 0 : sharedNodes.size();}
+	
+	/*
+	 * The shared node equal to the given one, which is added when there is none
+	 */
+	DNATreeNode internNode(DNATreeNode node)
+	{
+		DNATreeNode shared = sharedNodes.putIfAbsent(node, node);
+		
+		return shared == null ? node : shared;
+	}
+	
+	/*
+	 * The root of the first tree with the label of the given encoded tree (see DNATree.equals), which is the given
+	 * root when there is none. Needed only for trees with hidden parents, the others are told apart by their nodes.
+	 */
+	DNATreeNode internRoot(byte[] code, DNATreeNode root)
+	{
+		ByteBuffer label = ByteBuffer.wrap(code, 0, treeCodec.getLabelLength(code)).slice();
+		DNATreeNode shared = sharedRoots.putIfAbsent(label, root);
+		
+		return shared == null ? root : shared;
+	}
+	
+	/*
+	 * The union of the red sets of the excluded annotations, computed once per combination
+	 */
+	private long[] excludedRedSet(long excludedAnnotations)
+	{
+		long[] union = excludedRedSetArray != null ? excludedRedSetArray.get((int) excludedAnnotations)
+				: excludedRedSets.get(excludedAnnotations);
+		
+		if(union == null)
 		{
-			System.out.println("Critical error: wrong char");
-			transitions = null;
+			union = BitSets.create(stateCount);
+			
+			for(int annotation = 0; annotation < 64; annotation++)
+			{
+				if((excludedAnnotations & (1L << annotation)) != 0)
+					BitSets.or(union, redSets[annotation]);
+			}
+			
+			if(excludedRedSetArray != null)
+				excludedRedSetArray.set((int) excludedAnnotations, union);
+			else
+				excludedRedSets.putIfAbsent(excludedAnnotations, union);
 		}
 		
-		for(Integer state: states)
+		return union;
+	}
+	
+	/*
+	 * Removes non accepting states from the supplied set
+	 */
+	public void retainGreen(long[] states, int annotation)
+	{
+		retainGreen(states, 0, annotation);
+	}
+	
+	/*
+	 * Same as retainGreen, for a set kept inside a larger array starting at word from
+	 */
+	void retainGreen(long[] states, int from, int annotation)
+	{
+		long[] green = this.greenSets[annotation];
+		
+		for(int i = 0; i < green.length; i++)
 		{
-			result.addAll(transitions.get(state));
+			states[from + i] &= green[i];
 		}
+	}
+	
+	
+	/*
+	 * The successors of a state with a letter. Not a copy, must not be modified.
+	 */
+	long[] getSuccessors(int sigma, int state) {return transitions[sigma][state];}
+	
+	long[] getRedSet(int annotation) {return redSets[annotation];}
+	
+	long[] getGreenSet(int annotation) {return greenSets[annotation];}
+	
+	/*
+	 * Turns the SCC aware mode on. Must be called before converting.
+	 *
+	 * A state on no cycle of the NSA (a transient state) is visited at most once by a run, so whether it is red or
+	 * green never decides acceptance. In the SCC aware mode the transient states are taken out of every red and
+	 * green set: the NSA accepts the same language, and the transient states go through the trees as plain
+	 * subset construction states, spawning no green children and excluded from no node. Only the nontrivial SCCs
+	 * drive the Streett part of the construction, which gives fewer DNA states.
+	 */
+	public void enableSccAware()
+	{
+		if(transientStates != null)
+			return;
+		
+		transientStates = new NSAGraph(this).transientStates();
 		
-		for(Integer excluded : excludedAnnotations)
+		for(int i = 0; i < annotationCount; i++)
 		{
-			result.removeAll(redSets.get(excluded));
+			BitSets.andNot(redSets[i], transientStates);
+			BitSets.andNot(greenSets[i], transientStates);
 		}
 		
-		return result;
+		excludedRedSets.clear();           //Unions of the red sets as they were
+		
+		if(imageCache != null)
+			imageCache.clear();
+		
+		if(excludedRedSetArray != null)
+			excludedRedSetArray = new AtomicReferenceArray<long[]>(1 << annotationCount);
 	}
 	
 	/*
-	 * Removes non accepting states from the supplied set
+	 * A hash of all the DNA depends on: the states, letters, transitions and pairs. A checkpoint is only resumed
+	 * for an NSA with the same fingerprint (see DNACheckpoint).
 	 */
-	public void retainGreen(Set<Integer> states, int annotation)
+	long getFingerprint()
 	{
-		states.retainAll(this.greenSets.get(annotation));
+		long hash = 17;
+		
+		hash = 31 * hash + stateCount;
+		hash = 31 * hash + annotationCount;
+		hash = 31 * hash + symbols.hashCode();
+		hash = 31 * hash + Arrays.hashCode(startStates);
+		hash = 31 * hash + Arrays.deepHashCode(transitions);
+		hash = 31 * hash + Arrays.deepHashCode(redSets);
+		hash = 31 * hash + Arrays.deepHashCode(greenSets);
+		
+		return hash;
 	}
 	
+	/*
+	 * The transient states once the SCC aware mode is on, null before
+	 */
+	public long[] getTransientStates() {return transientStates == null ? null : transientStates.clone();}
 	
-	public Set<Integer> getStartStates() {
-		return new HashSet<Integer>(startStates);
+	public long[] getStartStates() {
+		return startStates.clone();
 	}
 	
 	public int getStateCount() {
 		return stateCount;
 	}
 	
+	/*
+	 * The number of words (longs) in a set of states
+	 */
+	public int getStateWords() {return (stateCount + 63) >>> 6;}
+	
 	public int getAnnotationCount() {return annotationCount;}
 	
+	public long getParseBytes() {return parseBytes;}
+	
+	/*
+	 * Parse throughput of the input file, in MB/s
+	 */
+	public double getParseThroughput() {return parseBytes / 1e6 / Math.max(parseNanos / 1e9, 1e-9);}
+	
+	/*
+	 * The transition engine of the calling thread
+	 */
+	DNATransitionEngine getTransitionEngine()
+	{
+		DNATransitionEngine engine = transitionEngines.get();
+		
+		if(engine == null)
+		{
+			engine = new DNATransitionEngine(this);
+			transitionEngines.set(engine);
+		}
+		
+		return engine;
+	}
+	
+	/*
+	 * Drops the transition engine of the calling thread. The engine refers to this NSA, so a thread that outlives
+	 * the conversion (see DNABatch) would otherwise keep the NSA and the engine buffers reachable.
+	 */
+	void releaseTransitionEngine()
+	{
+		DNATransitionEngine engine = transitionEngines.get();
+		
+		if(engine != null)
+		{
+			engine.release();
+			transitionEngines.remove();
+		}
+	}
+	
+	DNATreeCodec getTreeCodec() {return treeCodec;}
+	
 	public int getNPrime() {return this.stateCount * (this.annotationCount+1);}
 	
+	/*
+	 * The letters of the NSA, by symbol id
+	 */
+	public List<String> getAlphabet() {return Collections.unmodifiableList(symbols);}
+	
+	public int getAlphabetSize() {return symbols.size();}
+	
+	public String getSymbol(int symbol) {return symbols.get(symbol);}
+	
+	/*
+	 * The class of each letter, by symbol id. Letters of a class have the same transitions, so the same DNA
+	 * transitions: the DNA is computed for one letter per class.
+	 */
+	public int[] getLetterClasses() {return letterClasses.clone();}
+	
+	public int getLetterClass(int symbol) {return letterClasses[symbol];}
+	
+	public int getLetterClassCount() {return letterClassCount;}
+	
+	/*
+	 * The symbol id of a letter
+	 */
+	public int getSymbolId(String sigma)
+	{
+		Integer symbol = symbolIds.get(sigma);
+		
+		if(symbol == null)
+			throw new IllegalArgumentException("Critical error: wrong char " + sigma);
+		
+		return symbol;
+	}
+	
 	/*
 	 * Returns the conversion of the NSA to a string containing the DNA in graphviz format.
+	 * The initial tree is Q0, the other trees are numbered by the order of their labels.
 	 */
 	public String convertToDNA()
 	{
-		SortedSet<DNATree> states = new TreeSet<DNATree>(new Comparator<DNATree>() {
-			@Override
-			public int compare(DNATree o1, DNATree o2) {
-				String startString = (new DNATree(NSA.this)).toString();
-				String o1String = o1.toString();
-				String o2String = o2.toString();
-				
-				if(o1String.equals(startString) && o2String.equals(startString))
-					return 0;
-				else if(o1String.equals(startString))
-					return -1;
-				else if(o2String.equals(startString))
-					return 1;
-				else
-					return o1String.toString().compareTo(o2String.toString());
-			}
-		});
+		return convertToDNA(1);
+	}
+	
+	/*
+	 * Same as convertToDNA(), exploring the DNA with the given number of threads
+	 */
+	public String convertToDNA(int threads)
+	{
+		DNAExplorer explorer = new DNAExplorer(this, threads);
+		explorer.explore();
+		
+		return convertToDNA(explorer);
+	}
+	
+	/*
+	 * Same as convertToDNA(), for a DNA already explored
+	 */
+	public String convertToDNA(DNAExplorer explorer)
+	{
+		StringWriter out = new StringWriter();
+		
+		try
+		{
+			convertToDNA(explorer, out);
+		}
+		catch(IOException ex)
+		{
+			throw new UncheckedIOException(ex); // A StringWriter does not throw
+		}
+		
+		return out.toString();
+	}
+	
+	/*
+	 * Writes the conversion of the NSA to the DNA in graphviz format (see convertToDNA()) to out, line by line.
+	 * Does not close out.
+	 */
+	public void convertToDNA(Writer out) throws IOException
+	{
+		convertToDNA(out, 1);
+	}
+	
+	/*
+	 * Same as convertToDNA(Writer), exploring the DNA with the given number of threads
+	 */
+	public void convertToDNA(Writer out, int threads) throws IOException
+	{
+		DNAExplorer explorer = new DNAExplorer(this, threads);
+		explorer.explore();
+		
+		convertToDNA(explorer, out);
+	}
+	
+	/*
+	 * Same as convertToDNA(Writer), for a DNA already explored.
+	 * The states come in the order of their indices. The transitions come sorted as strings, as they always were:
+	 * by the decimal string of the source index (so that Q10 comes before Q2), and the lines of a source sorted.
+	 */
+	public void convertToDNA(DNAExplorer explorer, Writer out) throws IOException
+	{
+		DNAEvents.OutputEvent event = new DNAEvents.OutputEvent();
+		long start = System.nanoTime();
 		
-		recGenerateDNA(states, new DNATree(this));
+		event.begin();
+		writeGraphviz(explorer, out);
+		recordOutput(event, "graphviz", explorer.getStates().size(), start);
+	}
+	
+	private void writeGraphviz(DNAExplorer explorer, Writer out) throws IOException
+	{
+		DNAStateStore table = explorer.getStates();
+		DNATransitionTable transitions = explorer.getTransitions();
+		String lineSeparator = System.lineSeparator();
 		
-		String stateString = "";
-		String transitionString = "";
+		int[] order = outputOrder(table);
+		int[] treeIndices = new int[table.size()];
 		
-		int index = 0;
-		for(DNATree state : states)
+		for(int index = 0; index < order.length; index++)
 		{
-			stateString += String.format("		Q%d [label=\"%s\"]" + System.lineSeparator(), index, state.toString());
-			state.setTreeIndex(index);
-			index++;
+			int id = order[index];
+			
+			treeIndices[id] = index;
+			out.write("\t\tQ" + index + " [label=\"" + table.get(id) + "\"]" + lineSeparator);
 		}
 		
-		SortedSet<String> outputTransitions = new TreeSet<String>();
-		for(DNATree state : states)
+		String[] lines = new String[symbols.size()];
+		
+		for(int first = 0; first <= 9 && first < order.length; first++)
 		{
-			for(String c : transitionMap.keySet())
+			int index = first;
+			
+			while(true)          //Visit the indices with the decimal prefix of first in string order
 			{
-				DNATransition trans = state.transition(c);
-				String label = c + "[" + trans.k + "]";
+				int id = order[index];
+				
+				for(int letter = 0; letter < symbols.size(); letter++)
+				{
+					lines[letter] = "\t\t\t\tQ" + index + " -> Q" + treeIndices[transitions.getTarget(id, letter)]
+							+ " [label=\"" + symbols.get(letter) + "[" + transitions.getK(id, letter) + "]\"]" + lineSeparator;
+				}
 				
-				outputTransitions.add(String.format("				Q%d -> Q%d [label=\"%s\"]"+ System.lineSeparator(),
-						trans.originalState.getTreeIndex(),states.headSet(trans.resultState).size(), label)); 
-			}	
+				Arrays.sort(lines);
+				
+				for(String line : lines)
+				{
+					out.write(line);
+				}
+				
+				index = nextInStringOrder(index, first, order.length);
+				
+				if(index < 0)
+					break;
+			}
 		}
+	}
+	
+	/*
+	 * Writes the DNA in the binary format of DNAFile, with the states numbered as in convertToDNA().
+	 * The encoded trees are included when withTrees is set. Does not close out.
+	 */
+	public void convertToBinaryDNA(DNAExplorer explorer, boolean withTrees, OutputStream out) throws IOException
+	{
+		DNAEvents.OutputEvent event = new DNAEvents.OutputEvent();
+		long start = System.nanoTime();
 		
-		for(String transition : outputTransitions)
+		event.begin();
+		
+		DNAStateStore table = explorer.getStates();
+		int[] order = outputOrder(table);
+		
+		int flags = (withTrees ? DNAFile.FLAG_TREES : 0) | (explorer.isMinimized() ? DNAFile.FLAG_MINIMIZED : 0);
+		
+		DNAFile.write(this, order, table, explorer.getTransitions(), flags, out);
+		recordOutput(event, "binary", table.size(), start);
+	}
+	
+	private static void recordOutput(DNAEvents.OutputEvent event, String format, int states, long start)
+	{
+		event.end();
+		
+		if(event.shouldCommit())
 		{
-			transitionString += transition;
+			event.format = format;
+			event.states = states;
+			event.commit();
 		}
 		
-		return stateString+transitionString;
+		if(DNAMetrics.isEnabled())
+			DNAMetrics.recordOutput(System.nanoTime() - start);
 	}
 	
 	/*
-	 * A recursive helper method for generating the DNA
+	 * Numbers the states of the DNA for the output (see DNAOutputOrder). Returns the ids of the states by their
+	 * index, and sets the tree index of each state when the trees are kept on the heap.
 	 */
-	private void recGenerateDNA(SortedSet<DNATree> states, DNATree tree)
+	private int[] outputOrder(DNAStateStore table) throws IOException
 	{
-		if(!states.contains(tree))
+		int[] ids = DNAOutputOrder.compute(table);
+		
+		if(table instanceof DNAStateTable)
 		{
-			states.add(tree);
-			
-			for(String c : transitionMap.keySet())
+			for(int index = 0; index < ids.length; index++)
 			{
-				recGenerateDNA(states, tree.transition(c).resultState);
+				table.get(ids[index]).setTreeIndex(index);
 			}
-			
 		}
+		
+		return ids;
 	}
 	
-	
+	/*
+	 * The index after the given one when the indices 0..size-1 are sorted by their decimal strings,
+	 * or -1 when there is none with the decimal prefix of first (0..9). The string order is the preorder
+	 * of the tree where the children of i are 10*i..10*i+9.
+	 */
+	private static int nextInStringOrder(int index, int first, int size)
+	{
+		if(index != 0 && index <= (size - 1) / 10)         //Down to the first child
+			return index * 10;
+		
+		while(index != first)
+		{
+			if(index % 10 != 9 && index + 1 < size)         //Next sibling
+				return index + 1;
+			
+			index /= 10;                                  //Up to the parent
+		}
+		
+		return -1;
+	}
 	
 }
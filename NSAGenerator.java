@@ -0,0 +1,144 @@
+package automata.nsa;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/*
+ * Generates random NSAs in the graphviz format read by NSA(String path), for benchmarks.
+ * The same parameters and seed always give the same NSA.
+ *
+ * State q0 is the only starting state. Every state has, for every letter, density successors on average
+ * (the integer part always, one more with the probability of the fraction), chosen uniformly without repetition.
+ * Every state is in each red and each green set with probability setDensity.
+ *
+ * Usage: NSAGenerator <states> <letters> <density> <pairs> <seed> <output NSA>
+ */
+public class NSAGenerator {
+
+	private int stateCount;
+
+	private int letterCount;
+
+	private double density;
+
+	private int pairCount;
+
+	private double setDensity = 0.25;
+
+	private long seed;
+
+	public NSAGenerator(int stateCount, int letterCount, double density, int pairCount, long seed)
+	{
+		if(stateCount < 1 || letterCount < 1 || density < 0 || density > stateCount || pairCount < 0)
+			throw new IllegalArgumentException("Bad NSA parameters");
+
+		this.stateCount = stateCount;
+		this.letterCount = letterCount;
+		this.density = density;
+		this.pairCount = pairCount;
+		this.seed = seed;
+	}
+
+	public void setSetDensity(double setDensity) {this.setDensity = setDensity;}
+
+	/*
+	 * The name of a letter: a..z, then x26, x27...
+	 */
+	public static String letterName(int letter)
+	{
+		return letter < 26 ? String.valueOf((char) ('a' + letter)) : "x" + letter;
+	}
+
+	/*
+	 * Writes the NSA. Does not close out.
+	 */
+	public void write(Writer out) throws IOException
+	{
+		Random random = new Random(seed);
+		String lineSeparator = System.lineSeparator();
+		int[] targets = new int[stateCount];
+
+		for(int i = 0; i < stateCount; i++)
+		{
+			targets[i] = i;
+		}
+
+		out.write("digraph {" + lineSeparator);
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			out.write("\tq" + state + " [label=\"" + (state == 0 ? "*" : "") + "q" + state + "\"]" + lineSeparator);
+		}
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			for(int letter = 0; letter < letterCount; letter++)
+			{
+				int successors = (int) density + (random.nextDouble() < density - (int) density ? 1 : 0);
+
+				for(int i = 0; i < successors; i++)          //A partial Fisher-Yates shuffle picks distinct targets
+				{
+					int j = i + random.nextInt(stateCount - i);
+					int target = targets[j];
+
+					targets[j] = targets[i];
+					targets[i] = target;
+
+					out.write("\tq" + state + " -> q" + target + " [label=" + letterName(letter) + "]" + lineSeparator);
+				}
+			}
+		}
+
+		out.write("}" + lineSeparator);
+
+		writeSets(out, random, "R", lineSeparator);
+		writeSets(out, random, "G", lineSeparator);
+	}
+
+	private void writeSets(Writer out, Random random, String color, String lineSeparator) throws IOException
+	{
+		for(int pair = 0; pair < pairCount; pair++)
+		{
+			StringBuilder line = new StringBuilder(color + "_" + pair + " ");
+			boolean first = true;
+
+			for(int state = 0; state < stateCount; state++)
+			{
+				if(random.nextDouble() < setDensity)
+				{
+					if(!first)
+						line.append(' ');
+
+					line.append(state);
+					first = false;
+				}
+			}
+
+			out.write(line.append(lineSeparator).toString());
+		}
+	}
+
+	public void write(String path) throws IOException
+	{
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(path)))
+		{
+			write(out);
+		}
+	}
+
+	public static void main(String[] args) throws NumberFormatException, IOException
+	{
+		if(args.length != 6)
+		{
+			System.out.println("Usage: NSAGenerator <states> <letters> <density> <pairs> <seed> <output NSA>");
+			return;
+		}
+
+		new NSAGenerator(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Double.parseDouble(args[2]),
+				Integer.parseInt(args[3]), Long.parseLong(args[4])).write(args[5]);
+	}
+
+}
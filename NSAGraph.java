@@ -0,0 +1,218 @@
+package automata.nsa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The graph of an NSA regardless of the letters: the states, each with its successors with any letter.
+ * Used to find the strongly connected components of an NSA, see NSAPruner and NSA.enableSccAware.
+ */
+class NSAGraph {
+
+	private int stateCount;
+
+	/*
+	 * Successors of each state with any letter, in increasing order
+	 */
+	private int[][] successors;
+
+	NSAGraph(NSA nsa)
+	{
+		this.stateCount = nsa.getStateCount();
+		int letterCount = nsa.getAlphabetSize();
+
+		successors = new int[stateCount][];
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			long[] union = BitSets.create(stateCount);
+
+			for(int letter = 0; letter < letterCount; letter++)
+			{
+				BitSets.or(union, nsa.getSuccessors(letter, state));
+			}
+
+			successors[state] = toArray(union);
+		}
+	}
+
+	int[] getSuccessors(int state) {return successors[state];}
+
+	/*
+	 * The states that are on no cycle: after leaving them, a run never comes back
+	 */
+	long[] transientStates()
+	{
+		long[] transientStates = BitSets.create(stateCount);
+		int[] states = new int[stateCount];
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			states[state] = state;
+		}
+
+		for(int[] component : components(states))
+		{
+			if(!isCycle(component))
+				BitSets.add(transientStates, component[0]);
+		}
+
+		return transientStates;
+	}
+
+	/*
+	 * Predecessors of each state among the kept states
+	 */
+	int[][] predecessors(boolean[] kept)
+	{
+		int[] counts = new int[stateCount];
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			if(kept[state])
+				for(int successor : successors[state])
+				{
+					counts[successor]++;
+				}
+		}
+
+		int[][] predecessors = new int[stateCount][];
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			predecessors[state] = new int[counts[state]];
+			counts[state] = 0;
+		}
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			if(kept[state])
+				for(int successor : successors[state])
+				{
+					predecessors[successor][counts[successor]++] = state;
+				}
+		}
+
+		return predecessors;
+	}
+
+	/*
+	 * The strongly connected components of the graph restricted to the given states (Tarjan's algorithm, without
+	 * recursion)
+	 */
+	List<int[]> components(int[] states)
+	{
+		List<int[]> components = new ArrayList<int[]>();
+		int[] index = new int[stateCount];
+		int[] lowLink = new int[stateCount];
+		boolean[] onStack = new boolean[stateCount];
+		int[] stack = new int[states.length];
+		int[] callStack = new int[states.length];
+		int[] nextSuccessor = new int[stateCount];
+		int stackSize = 0;
+		int counter = 0;
+
+		Arrays.fill(index, -2);
+
+		for(int state : states)
+		{
+			index[state] = -1;        //-1 is in the subgraph and not visited yet
+		}
+
+		for(int root : states)
+		{
+			if(index[root] != -1)
+				continue;
+
+			int depth = 0;
+
+			callStack[depth++] = root;
+			index[root] = lowLink[root] = counter++;
+			stack[stackSize++] = root;
+			onStack[root] = true;
+
+			while(depth > 0)
+			{
+				int state = callStack[depth - 1];
+
+				if(nextSuccessor[state] < successors[state].length)
+				{
+					int successor = successors[state][nextSuccessor[state]++];
+
+					if(index[successor] == -1)
+					{
+						index[successor] = lowLink[successor] = counter++;
+						stack[stackSize++] = successor;
+						onStack[successor] = true;
+						callStack[depth++] = successor;
+					}
+					else if(onStack[successor])
+						lowLink[state] = Math.min(lowLink[state], index[successor]);
+				}
+				else
+				{
+					depth--;
+
+					if(depth > 0)
+						lowLink[callStack[depth - 1]] = Math.min(lowLink[callStack[depth - 1]], lowLink[state]);
+
+					if(lowLink[state] == index[state])
+					{
+						int end = stackSize;
+
+						do
+						{
+							onStack[stack[--stackSize]] = false;
+						}
+						while(stack[stackSize] != state);
+
+						components.add(Arrays.copyOfRange(stack, stackSize, end));
+					}
+				}
+			}
+		}
+
+		return components;
+	}
+
+	/*
+	 * Whether the component has a cycle: more than one state, or a state with a loop
+	 */
+	boolean isCycle(int[] component)
+	{
+		if(component.length > 1)
+			return true;
+
+		return Arrays.binarySearch(successors[component[0]], component[0]) >= 0;
+	}
+
+	/*
+	 * The states of a set, in increasing order
+	 */
+	static int[] toArray(long[] set)
+	{
+		int[] states = new int[count(set)];
+		int i = 0;
+
+		for(int state = BitSets.nextSetBit(set, 0); state >= 0; state = BitSets.nextSetBit(set, state + 1))
+		{
+			states[i++] = state;
+		}
+
+		return states;
+	}
+
+	private static int count(long[] set)
+	{
+		int count = 0;
+
+		for(long word : set)
+		{
+			count += Long.bitCount(word);
+		}
+
+		return count;
+	}
+
+}
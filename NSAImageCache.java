@@ -0,0 +1,169 @@
+package automata.nsa;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A bounded memo of the images of NSA.transitionFunction: the successors of a state set with a letter, less the red
+ * sets of the excluded annotations. The nodes of successive trees keep holding the same sets, so the same images
+ * are asked for again and again (see NSA.enableImageCache).
+ *
+ * The cache is a table of capacity entries, two way set associative: an input is hashed to a set of two entries,
+ * and kept in one of them. A new input replaces the entry of its set not recently used: a hit marks its entry,
+ * and when both entries are marked the marks are cleared. Entries are immutable and swapped in whole, so lookups
+ * take no locks and concurrent callers share the cache. Racing stores may lose an entry, which is a later miss.
+ */
+public class NSAImageCache {
+
+	private int words;
+
+	/*
+	 * Number of sets - 1, a power of two - 1
+	 */
+	private int mask;
+
+	private AtomicReferenceArray<Entry> entries;
+
+	private LongAdder hits = new LongAdder();
+
+	private LongAdder misses = new LongAdder();
+
+	private static class Entry
+	{
+		private final int hash;
+		private final int sigma;
+		private final long excludedAnnotations;
+		private final long[] states;
+		private final long[] image;
+		private volatile boolean referenced;
+
+		private Entry(int hash, int sigma, long excludedAnnotations, long[] states, long[] image)
+		{
+			this.hash = hash;
+			this.sigma = sigma;
+			this.excludedAnnotations = excludedAnnotations;
+			this.states = states;
+			this.image = image;
+		}
+
+		private boolean matches(int hash, long[] source, int sourceFrom, long excludedAnnotations, int sigma)
+		{
+			return this.hash == hash && this.sigma == sigma && this.excludedAnnotations == excludedAnnotations
+					&& Arrays.equals(states, 0, states.length, source, sourceFrom, sourceFrom + states.length);
+		}
+	}
+
+	/*
+	 * A cache of at most capacity images (rounded down to a power of two) of sets of the given number of words
+	 */
+	NSAImageCache(int words, int capacity)
+	{
+		if(capacity < 2)
+			throw new IllegalArgumentException("Image cache capacity must be at least 2, got " + capacity);
+
+		this.words = words;
+		this.mask = Integer.highestOneBit(capacity) / 2 - 1;
+		this.entries = new AtomicReferenceArray<Entry>(2 * (mask + 1));
+	}
+
+	private int hash(long[] source, int sourceFrom, long excludedAnnotations, int sigma)
+	{
+		long h = 31 * excludedAnnotations + sigma;
+
+		for(int i = sourceFrom; i < sourceFrom + words; i++)
+		{
+			h = (h ^ source[i]) * 0x9E3779B97F4A7C15L;
+		}
+
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/*
+	 * Writes the cached image of the set in source[sourceFrom..] to target[targetFrom..]. Returns false, writing
+	 * nothing, when it is not cached.
+	 */
+	boolean lookup(long[] source, int sourceFrom, long excludedAnnotations, int sigma, long[] target, int targetFrom)
+	{
+		int hash = hash(source, sourceFrom, excludedAnnotations, sigma);
+		int set = (hash & mask) << 1;
+
+		for(int way = 0; way < 2; way++)
+		{
+			Entry entry = entries.get(set + way);
+
+			if(entry != null && entry.matches(hash, source, sourceFrom, excludedAnnotations, sigma))
+			{
+				if(!entry.referenced)
+					entry.referenced = true;
+
+				System.arraycopy(entry.image, 0, target, targetFrom, words);
+				hits.increment();
+
+				return true;
+			}
+		}
+
+		misses.increment();
+
+		return false;
+	}
+
+	/*
+	 * Caches the image in target[targetFrom..] of the set in source[sourceFrom..]
+	 */
+	void store(long[] source, int sourceFrom, long excludedAnnotations, int sigma, long[] target, int targetFrom)
+	{
+		int hash = hash(source, sourceFrom, excludedAnnotations, sigma);
+		int set = (hash & mask) << 1;
+		Entry first = entries.get(set);
+		Entry second = entries.get(set + 1);
+		int slot;
+
+		if(first == null || !first.referenced)
+			slot = set;
+		else if(second == null || !second.referenced)
+			slot = set + 1;
+		else
+		{
+			first.referenced = false;
+			second.referenced = false;
+			slot = set;
+		}
+
+		entries.set(slot, new Entry(hash, sigma, excludedAnnotations, Arrays.copyOfRange(source, sourceFrom, sourceFrom + words),
+				Arrays.copyOfRange(target, targetFrom, targetFrom + words)));
+	}
+
+	/*
+	 * Drops every image, when the NSA they were computed for changed
+	 */
+	void clear()
+	{
+		for(int i = 0; i < entries.length(); i++)
+		{
+			entries.set(i, null);
+		}
+	}
+
+	/*
+	 * Number of images the cache holds at most
+	 */
+	public int getCapacity() {return entries.length();}
+
+	public long getHits() {return hits.sum();}
+
+	public long getMisses() {return misses.sum();}
+
+	/*
+	 * Fraction of the images answered from the cache
+	 */
+	public double getHitRate()
+	{
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+}
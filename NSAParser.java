@@ -0,0 +1,436 @@
+package automata.nsa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Scans an NSA in graphviz format, as read by NSA(String path). The file is read in large blocks through a
+ * FileChannel and the lines are recognized by hand on the bytes, so only the symbols themselves become Strings.
+ * The recognized lines are the same as with the former regular expressions:
+ *
+ *   state        <whitespace>q<n> [label="q<n>"]       (not starting)
+ *                <whitespace>q<n> [label="*q<n>"]      (starting)
+ *                <whitespace>q<n> [label="*q<n>$"]     (starting)
+ *   transition   <whitespace>q<n> -> q<m> [label=<symbol>]
+ *   pair         R_<i> <states> or G_<i> <states>, states separated by single spaces
+ *
+ * States are numbered by the order of their lines, other lines are ignored.
+ * The transitions are only collected here, the NSA sizes its tables once the number of states is known.
+ */
+final class NSAParser {
+
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	private static final byte[] ARROW = "-> q".getBytes();
+
+	private static final byte[] STATE_LABEL = "[label=\"".getBytes();
+
+	private static final byte[] TRANSITION_LABEL = " [label=".getBytes();
+
+	private int stateCount;
+
+	private int[] startStates = new int[16];
+	private int startCount;
+
+	private List<int[]> redSets = new ArrayList<int[]>();
+	private List<int[]> greenSets = new ArrayList<int[]>();
+
+	/*
+	 * The symbols by id, in the order they first appear. symbolTable is an open addressing hash table of
+	 * symbol ids (-1 for empty), keyed by the bytes of the symbol.
+	 */
+	private List<String> symbols = new ArrayList<String>();
+	private List<byte[]> symbolBytes = new ArrayList<byte[]>();
+	private int[] symbolHashes = new int[16];
+	private int[] symbolTable = newSymbolTable(64);
+
+	/*
+	 * The transitions in the order of their lines: symbol, source state and target state
+	 */
+	private int[] transitions = new int[3 * 1024];
+	private int transitionCount;
+
+	private Charset charset = Charset.defaultCharset();
+
+	private long bytes;
+	private long nanos;
+
+	/*
+	 * Scans the file
+	 */
+	void parse(Path path) throws IOException
+	{
+		long start = System.nanoTime();
+		byte[] block = new byte[BLOCK_SIZE];
+		int length = 0;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			while(true)
+			{
+				if(length == block.length)            //A line longer than the block
+					block = Arrays.copyOf(block, 2 * block.length);
+
+				int read = channel.read(ByteBuffer.wrap(block, length, block.length - length));
+
+				if(read < 0)
+					break;
+
+				bytes += read;
+				length += read;
+
+				int rest = parseLines(block, length);
+
+				System.arraycopy(block, rest, block, 0, length - rest);
+				length -= rest;
+			}
+		}
+
+		parseLine(block, 0, length);        //The last line, with no line break
+
+		nanos = System.nanoTime() - start;
+	}
+
+	/*
+	 * Parses the complete lines in block[0..length). Returns the start of the first incomplete line.
+	 * A line ends at \n, \r or \r\n. A \r\n split between two blocks gives an extra empty line, which is ignored.
+	 */
+	private int parseLines(byte[] block, int length)
+	{
+		int lineStart = 0;
+
+		for(int pos = 0; pos < length; pos++)
+		{
+			byte c = block[pos];
+
+			if(c == '\n' || c == '\r')
+			{
+				parseLine(block, lineStart, pos);
+
+				if(c == '\r' && pos + 1 < length && block[pos + 1] == '\n')
+					pos++;
+
+				lineStart = pos + 1;
+			}
+		}
+
+		return lineStart;
+	}
+
+	private void parseLine(byte[] line, int from, int to)
+	{
+		if(from == to)
+			return;
+
+		if(!isSpace(line[from]))
+		{
+			parsePair(line, from, to);
+			return;
+		}
+
+		int pos = from;
+
+		while(pos < to && isSpace(line[pos]))
+		{
+			pos++;
+		}
+
+		if(pos == to || line[pos] != 'q')
+			return;
+
+		int sourceEnd = skipDigits(line, pos + 1, to);
+
+		if(sourceEnd == pos + 1 || sourceEnd == to || line[sourceEnd] != ' ')
+			return;
+
+		if(startsWith(line, sourceEnd + 1, to, ARROW))
+			parseTransition(line, pos + 1, sourceEnd, to);
+		else if(startsWith(line, sourceEnd + 1, to, STATE_LABEL))
+			parseState(line, sourceEnd + 1 + STATE_LABEL.length, to);
+	}
+
+	/*
+	 * The rest of a transition line, from the target state on
+	 */
+	private void parseTransition(byte[] line, int sourceFrom, int sourceTo, int to)
+	{
+		int targetFrom = sourceTo + 1 + ARROW.length;
+		int targetTo = skipDigits(line, targetFrom, to);
+
+		if(targetTo == targetFrom || !startsWith(line, targetTo, to, TRANSITION_LABEL))
+			return;
+
+		int symbolFrom = targetTo + TRANSITION_LABEL.length;
+		int symbolTo = to - 1;
+
+		if(symbolTo <= symbolFrom || line[symbolTo] != ']')
+			return;
+
+		for(int pos = symbolFrom; pos < symbolTo; pos++)
+		{
+			if(isSpace(line[pos]))
+				return;
+		}
+
+		if(3 * transitionCount + 3 > transitions.length)
+			transitions = Arrays.copyOf(transitions, 2 * transitions.length);
+
+		int pos = 3 * transitionCount++;
+
+		transitions[pos] = symbolId(line, symbolFrom, symbolTo);
+		transitions[pos + 1] = parseInt(line, sourceFrom, sourceTo);
+		transitions[pos + 2] = parseInt(line, targetFrom, targetTo);
+	}
+
+	/*
+	 * The rest of a state line, after [label="
+	 */
+	private void parseState(byte[] line, int pos, int to)
+	{
+		boolean starting = pos < to && line[pos] == '*';
+
+		if(starting)
+			pos++;
+
+		if(pos == to || line[pos] != 'q')
+			return;
+
+		int digitsEnd = skipDigits(line, pos + 1, to);
+
+		if(digitsEnd == pos + 1)
+			return;
+
+		pos = digitsEnd;
+
+		if(starting && pos < to && line[pos] == '$')      //Accepting, only recognized for starting states
+			pos++;
+
+		if(pos + 2 != to || line[pos] != '"' || line[pos + 1] != ']')
+			return;
+
+		if(starting)
+		{
+			if(startCount == startStates.length)
+				startStates = Arrays.copyOf(startStates, 2 * startCount);
+
+			startStates[startCount++] = stateCount;
+		}
+
+		stateCount++;
+	}
+
+	/*
+	 * An R_i or G_i line
+	 */
+	private void parsePair(byte[] line, int from, int to)
+	{
+		if(from + 1 >= to || line[from + 1] != '_' || line[from] < 0)
+			return;
+
+		int indexEnd = skipDigits(line, from + 2, to);
+
+		if(indexEnd == from + 2 || indexEnd == to || line[indexEnd] != ' ')
+			return;
+
+		int index = parseInt(line, from + 2, indexEnd);
+		int statesFrom = indexEnd + 1;
+		int statesTo = to;
+
+		while(statesTo > statesFrom && line[statesTo - 1] == ' ')     //Trailing separators are ignored
+		{
+			statesTo--;
+		}
+
+		int count = 0;
+
+		for(int pos = statesFrom; pos < statesTo; pos++)
+		{
+			if(line[pos] == ' ')
+				count++;
+		}
+
+		int[] set = new int[statesTo > statesFrom ? count + 1 : 0];
+		int next = 0;
+
+		if(line[from] == 'R')
+			redSets.add(index, set);
+		else if(line[from] == 'G')
+			greenSets.add(index, set);
+		else
+			System.out.println("Error:Bad input format");
+
+		for(int pos = statesFrom; pos < statesTo; pos++)
+		{
+			int end = pos;
+
+			while(end < statesTo && line[end] != ' ')
+			{
+				end++;
+			}
+
+			set[next++] = parseInt(line, pos, end);
+			pos = end;
+		}
+	}
+
+	/*
+	 * The id of the symbol in line[from..to), added if it is new
+	 */
+	private int symbolId(byte[] line, int from, int to)
+	{
+		int hash = 1;
+
+		for(int pos = from; pos < to; pos++)
+		{
+			hash = 31 * hash + line[pos];
+		}
+
+		int mask = symbolTable.length - 1;
+
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask)
+		{
+			int id = symbolTable[slot];
+
+			if(id < 0)
+			{
+				id = symbols.size();
+
+				byte[] symbol = Arrays.copyOfRange(line, from, to);
+
+				symbols.add(new String(symbol, charset));
+				symbolBytes.add(symbol);
+
+				if(id == symbolHashes.length)
+					symbolHashes = Arrays.copyOf(symbolHashes, 2 * id);
+
+				symbolHashes[id] = hash;
+				symbolTable[slot] = id;
+
+				if(2 * symbols.size() > symbolTable.length)
+					rehash();
+
+				return id;
+			}
+
+			if(symbolHashes[id] == hash && Arrays.equals(symbolBytes.get(id), 0, symbolBytes.get(id).length, line, from, to))
+				return id;
+		}
+	}
+
+	private void rehash()
+	{
+		symbolTable = newSymbolTable(2 * symbolTable.length);
+
+		int mask = symbolTable.length - 1;
+
+		for(int id = 0; id < symbols.size(); id++)
+		{
+			int slot = symbolHashes[id] & mask;
+
+			while(symbolTable[slot] >= 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			symbolTable[slot] = id;
+		}
+	}
+
+	private static int[] newSymbolTable(int size)
+	{
+		int[] table = new int[size];
+
+		Arrays.fill(table, -1);
+
+		return table;
+	}
+
+	/*
+	 * The number in line[from..to), as Integer.parseInt would read it
+	 */
+	private static int parseInt(byte[] line, int from, int to)
+	{
+		boolean negative = from < to && line[from] == '-';
+		int pos = from < to && (line[from] == '-' || line[from] == '+') ? from + 1 : from;
+		long value = 0;
+
+		if(pos == to)
+			throw new NumberFormatException("For input string: \"" + new String(line, from, to - from) + "\"");
+
+		for(; pos < to; pos++)
+		{
+			if(line[pos] < '0' || line[pos] > '9' || (value = 10 * value + line[pos] - '0') > Integer.MAX_VALUE + 1L)
+				throw new NumberFormatException("For input string: \"" + new String(line, from, to - from) + "\"");
+		}
+
+		if(!negative && value > Integer.MAX_VALUE)
+			throw new NumberFormatException("For input string: \"" + new String(line, from, to - from) + "\"");
+
+		return (int) (negative ? -value : value);
+	}
+
+	private static int skipDigits(byte[] line, int pos, int to)
+	{
+		while(pos < to && line[pos] >= '0' && line[pos] <= '9')
+		{
+			pos++;
+		}
+
+		return pos;
+	}
+
+	private static boolean startsWith(byte[] line, int pos, int to, byte[] prefix)
+	{
+		if(to - pos < prefix.length)
+			return false;
+
+		for(int i = 0; i < prefix.length; i++)
+		{
+			if(line[pos + i] != prefix[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Whitespace as in the \s of regular expressions. Line breaks never occur inside a line.
+	 */
+	private static boolean isSpace(byte c)
+	{
+		return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+	}
+
+	int getStateCount() {return stateCount;}
+
+	int[] getStartStates() {return Arrays.copyOf(startStates, startCount);}
+
+	List<int[]> getRedSets() {return redSets;}
+
+	List<int[]> getGreenSets() {return greenSets;}
+
+	List<String> getSymbols() {return symbols;}
+
+	int getTransitionCount() {return transitionCount;}
+
+	int getTransitionSymbol(int transition) {return transitions[3 * transition];}
+
+	int getTransitionSource(int transition) {return transitions[3 * transition + 1];}
+
+	int getTransitionTarget(int transition) {return transitions[3 * transition + 2];}
+
+	/*
+	 * Size of the file and time the scan took
+	 */
+	long getBytes() {return bytes;}
+
+	long getNanos() {return nanos;}
+
+}
@@ -0,0 +1,371 @@
+package automata.nsa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Finds the states of an NSA worth keeping before determinization, see NSA.prune().
+ * A run is accepting when for every pair i, if it visits R_i infinitely often it also visits G_i infinitely often.
+ *
+ *  - States unreachable from the start states are dropped.
+ *  - States that cannot reach an accepting cycle are dropped. A strongly connected component holds an accepting
+ *    cycle when it visits G_i for every R_i it visits; otherwise its states of the unmatched R_i cannot be on an
+ *    accepting cycle, so they are removed and the rest of the component is checked again.
+ *  - The remaining states are merged by bisimulation: states in the same red and green sets whose successors with
+ *    every letter are merged states have the same runs up to renaming, so the same language.
+ *  - Pairs whose red set is left empty always hold, and are dropped (but one pair is always kept).
+ *
+ * The kept states are numbered densely, by the order of the first original state of each.
+ */
+class NSAPruner {
+
+	private NSA nsa;
+
+	private int stateCount;
+
+	private int letterCount;
+
+	private NSAGraph graph;
+
+	/*
+	 * New number of each original state, -1 for dropped states
+	 */
+	private int[] newIds;
+
+	private int newStateCount;
+
+	private int[] keptPairs;
+
+	NSAPruner(NSA nsa)
+	{
+		this.nsa = nsa;
+		this.stateCount = nsa.getStateCount();
+		this.letterCount = nsa.getAlphabetSize();
+
+		graph = new NSAGraph(nsa);
+
+		boolean[] kept = reachable();
+
+		keepUseful(kept);
+
+		if(stateCount > 0 && count(kept) == 0)           //The language is empty, a start state without transitions stays
+		{
+			int start = BitSets.nextSetBit(nsa.getStartStates(), 0);
+
+			kept[Math.max(start, 0)] = true;
+		}
+
+		mergeBisimilar(kept);
+		keepPairs();
+	}
+
+	private static int count(boolean[] set)
+	{
+		int count = 0;
+
+		for(boolean in : set)
+		{
+			if(in)
+				count++;
+		}
+
+		return count;
+	}
+
+	private boolean[] reachable()
+	{
+		boolean[] reached = new boolean[stateCount];
+		int[] stack = new int[stateCount];
+		int size = 0;
+		long[] start = nsa.getStartStates();
+
+		for(int state = BitSets.nextSetBit(start, 0); state >= 0; state = BitSets.nextSetBit(start, state + 1))
+		{
+			reached[state] = true;
+			stack[size++] = state;
+		}
+
+		while(size > 0)
+		{
+			for(int successor : graph.getSuccessors(stack[--size]))
+			{
+				if(!reached[successor])
+				{
+					reached[successor] = true;
+					stack[size++] = successor;
+				}
+			}
+		}
+
+		return reached;
+	}
+
+	/*
+	 * Restricts the kept states to the ones that can reach an accepting cycle
+	 */
+	private void keepUseful(boolean[] kept)
+	{
+		boolean[] good = new boolean[stateCount];
+		List<int[]> candidates = new ArrayList<int[]>();
+
+		candidates.add(toArray(kept));
+
+		while(!candidates.isEmpty())
+		{
+			int[] candidate = candidates.remove(candidates.size() - 1);
+
+			for(int[] component : graph.components(candidate))
+			{
+				if(!graph.isCycle(component))
+					continue;
+
+				int[] bad = unmatchedRedStates(component);
+
+				if(bad.length == 0)
+				{
+					for(int state : component)
+					{
+						good[state] = true;
+					}
+				}
+				else if(bad.length < component.length)
+				{
+					candidates.add(remove(component, bad));
+				}
+			}
+		}
+
+		int[][] predecessors = graph.predecessors(kept);
+		int[] stack = new int[stateCount];
+		int size = 0;
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			if(good[state])
+				stack[size++] = state;
+		}
+
+		while(size > 0)
+		{
+			for(int predecessor : predecessors[stack[--size]])
+			{
+				if(!good[predecessor])
+				{
+					good[predecessor] = true;
+					stack[size++] = predecessor;
+				}
+			}
+		}
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			kept[state] &= good[state];
+		}
+	}
+
+	private static int[] toArray(boolean[] set)
+	{
+		int[] states = new int[count(set)];
+		int i = 0;
+
+		for(int state = 0; state < set.length; state++)
+		{
+			if(set[state])
+				states[i++] = state;
+		}
+
+		return states;
+	}
+
+	/*
+	 * The states of the component in a red set whose green set the component does not meet
+	 */
+	private int[] unmatchedRedStates(int[] component)
+	{
+		long[] members = BitSets.create(stateCount);
+		long[] bad = BitSets.create(stateCount);
+
+		for(int state : component)
+		{
+			BitSets.add(members, state);
+		}
+
+		for(int pair = 0; pair < nsa.getAnnotationCount(); pair++)
+		{
+			long[] green = members.clone();
+
+			BitSets.and(green, nsa.getGreenSet(pair));
+
+			if(BitSets.isEmpty(green))
+			{
+				long[] red = members.clone();
+
+				BitSets.and(red, nsa.getRedSet(pair));
+				BitSets.or(bad, red);
+			}
+		}
+
+		return NSAGraph.toArray(bad);
+	}
+
+	/*
+	 * The states of the first sorted array that are not in the second
+	 */
+	private static int[] remove(int[] states, int[] removed)
+	{
+		int[] rest = new int[states.length - removed.length];
+		int i = 0;
+
+		for(int state : states)
+		{
+			if(Arrays.binarySearch(removed, state) < 0)
+				rest[i++] = state;
+		}
+
+		return rest;
+	}
+
+	/*
+	 * Numbers the kept states, giving the same number to bisimilar states
+	 */
+	private void mergeBisimilar(boolean[] kept)
+	{
+		int[] blocks = new int[stateCount];
+		int blockCount = -1;
+		Map<List<Integer>, Integer> signatures = new HashMap<List<Integer>, Integer>();
+
+		for(int state = 0; state < stateCount; state++)          //Start from the red and green sets of the states
+		{
+			if(!kept[state])
+				continue;
+
+			List<Integer> signature = new ArrayList<Integer>();
+
+			for(int pair = 0; pair < nsa.getAnnotationCount(); pair++)
+			{
+				signature.add((BitSets.contains(nsa.getRedSet(pair), state) ? 1 : 0)
+						+ (BitSets.contains(nsa.getGreenSet(pair), state) ? 2 : 0));
+			}
+
+			blocks[state] = block(signatures, signature);
+		}
+
+		while(signatures.size() != blockCount)         //Refine until no block splits
+		{
+			int[] refined = new int[stateCount];
+
+			blockCount = signatures.size();
+			signatures.clear();
+
+			for(int state = 0; state < stateCount; state++)
+			{
+				if(!kept[state])
+					continue;
+
+				List<Integer> signature = new ArrayList<Integer>();
+
+				signature.add(blocks[state]);
+
+				for(int letter = 0; letter < letterCount; letter++)
+				{
+					long[] successorSet = nsa.getSuccessors(letter, state);
+					long[] successorBlocks = BitSets.create(stateCount);
+
+					for(int successor = BitSets.nextSetBit(successorSet, 0); successor >= 0;
+							successor = BitSets.nextSetBit(successorSet, successor + 1))
+					{
+						if(kept[successor])
+							BitSets.add(successorBlocks, blocks[successor]);
+					}
+
+					signature.add(-1);       //Separates the letters
+
+					for(int block : NSAGraph.toArray(successorBlocks))
+					{
+						signature.add(block);
+					}
+				}
+
+				refined[state] = block(signatures, signature);
+			}
+
+			blocks = refined;
+		}
+
+		newIds = new int[stateCount];
+
+		int[] blockIds = new int[blockCount];
+
+		Arrays.fill(newIds, -1);
+		Arrays.fill(blockIds, -1);
+
+		for(int state = 0; state < stateCount; state++)
+		{
+			if(kept[state])
+			{
+				if(blockIds[blocks[state]] < 0)
+					blockIds[blocks[state]] = newStateCount++;
+
+				newIds[state] = blockIds[blocks[state]];
+			}
+		}
+	}
+
+	private static int block(Map<List<Integer>, Integer> signatures, List<Integer> signature)
+	{
+		Integer block = signatures.get(signature);
+
+		if(block == null)
+		{
+			block = signatures.size();
+			signatures.put(signature, block);
+		}
+
+		return block;
+	}
+
+	private void keepPairs()
+	{
+		List<Integer> pairs = new ArrayList<Integer>();
+
+		for(int pair = 0; pair < nsa.getAnnotationCount(); pair++)
+		{
+			long[] red = nsa.getRedSet(pair);
+
+			for(int state = BitSets.nextSetBit(red, 0); state >= 0; state = BitSets.nextSetBit(red, state + 1))
+			{
+				if(newIds[state] >= 0)
+				{
+					pairs.add(pair);
+					break;
+				}
+			}
+		}
+
+		if(pairs.isEmpty() && nsa.getAnnotationCount() > 0)          //The root of a DNA tree needs a pair
+			pairs.add(0);
+
+		keptPairs = new int[pairs.size()];
+
+		for(int i = 0; i < keptPairs.length; i++)
+		{
+			keptPairs[i] = pairs.get(i);
+		}
+	}
+
+	/*
+	 * The new number of an original state, -1 when it is dropped
+	 */
+	int getNewId(int state) {return newIds[state];}
+
+	int getNewStateCount() {return newStateCount;}
+
+	/*
+	 * The original pairs that are kept, in their order
+	 */
+	int[] getKeptPairs() {return keptPairs;}
+
+}
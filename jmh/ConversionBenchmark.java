@@ -0,0 +1,205 @@
+package automata.nsa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Benchmarks of the conversion of a random NSA (see NSAGenerator): parsing, a single DNA transition,
+ * full determinization, and writing the DNA in graphviz and binary format.
+ *
+ * Run with the allocation rate: java -jar jmh/target/benchmarks.jar ConversionBenchmark -prof gc
+ * The NSA is set with -p, e.g. -p states=10 -p letters=4 -p density=1.5 -p pairs=2 -p seed=7
+ * and the shared trees (see NSA.enableSharedTrees) with -p shared=true
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+	/*
+	 * Trees and letters the transition benchmark goes through, in turn
+	 */
+	private static final int TRANSITIONS = 1024;
+
+	@Param("8")
+	public int states;
+
+	@Param("3")
+	public int letters;
+
+	@Param("1.2")
+	public double density;
+
+	@Param("1")
+	public int pairs;
+
+	@Param("1")
+	public long seed;
+
+	@Param("false")
+	public boolean shared;
+
+	private Path path;
+
+	private NSA nsa;
+
+	/*
+	 * The explored DNA of the NSA, which the output benchmarks write
+	 */
+	private DNAExplorer explorer;
+
+	private DNATree[] trees;
+
+	private int[] transitionLetters;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		path = Files.createTempFile("nsa", ".gv");
+		new NSAGenerator(states, letters, density, pairs, seed).write(path.toString());
+
+		nsa = new NSA(path.toString());
+
+		if(shared)
+			nsa.enableSharedTrees();
+
+		explorer = new DNAExplorer(nsa);
+		explorer.explore();
+
+		trees = new DNATree[Math.min(explorer.getStates().size(), TRANSITIONS)];
+
+		for(int i = 0; i < trees.length; i++)
+		{
+			trees[i] = explorer.getStates().get(i);
+		}
+
+		transitionLetters = randomLetters(nsa, seed);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		Files.deleteIfExists(path);
+	}
+
+	@Benchmark
+	public NSA parse() throws IOException
+	{
+		return new NSA(path.toString());
+	}
+
+	@Benchmark
+	public DNATree.DNATransition transition()
+	{
+		int i = next++ & (TRANSITIONS - 1);
+
+		return trees[i % trees.length].transition(transitionLetters[i]);
+	}
+
+	@Benchmark
+	public DNAExplorer determinize()
+	{
+		DNAExplorer determinized = new DNAExplorer(nsa);
+
+		determinized.explore();
+
+		return determinized;
+	}
+
+	@Benchmark
+	public long graphviz() throws IOException
+	{
+		CountingWriter out = new CountingWriter();
+
+		nsa.convertToDNA(explorer, out);
+
+		return out.count;
+	}
+
+	@Benchmark
+	public long binary() throws IOException
+	{
+		CountingOutputStream out = new CountingOutputStream();
+
+		nsa.convertToBinaryDNA(explorer, true, out);
+
+		return out.count;
+	}
+
+	/*
+	 * TRANSITIONS random letters of the NSA
+	 */
+	static int[] randomLetters(NSA nsa, long seed)
+	{
+		int[] letters = new int[TRANSITIONS];
+		Random random = new Random(seed);
+
+		for(int i = 0; i < letters.length; i++)
+		{
+			letters[i] = random.nextInt(nsa.getAlphabetSize());
+		}
+
+		return letters;
+	}
+
+	/*
+	 * Counts the chars written, so that the output is not dead code
+	 */
+	private static class CountingWriter extends Writer
+	{
+		private long count;
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {count += length;}
+
+		@Override
+		public void write(String string, int offset, int length) {count += length;}
+
+		@Override
+		public void write(int c) {count++;}
+
+		@Override
+		public void flush() {}
+
+		@Override
+		public void close() {}
+	}
+
+	/*
+	 * Counts the bytes written, so that the output is not dead code
+	 */
+	private static class CountingOutputStream extends OutputStream
+	{
+		private long count;
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {count += length;}
+
+		@Override
+		public void write(int b) {count++;}
+	}
+
+}
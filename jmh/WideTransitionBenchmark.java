@@ -0,0 +1,101 @@
+package automata.nsa;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Single transitions of the trees met on a random walk in the DNA of a larger random NSA, whose trees have many
+ * nodes with many children, where the seniority stage dominates (see DNATransitionEngine.fixSeniority).
+ * The DNA is not explored, as it is usually too large.
+ *
+ * Run with the allocation rate: java -jar jmh/target/benchmarks.jar WideTransitionBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WideTransitionBenchmark {
+
+	/*
+	 * Letters read before the walk keeps its trees
+	 */
+	private static final int WALK_WARMUP = 1000;
+
+	@Param("256")
+	public int states;
+
+	@Param("3")
+	public int letters;
+
+	@Param("2")
+	public double density;
+
+	@Param("8")
+	public int pairs;
+
+	@Param("1")
+	public long seed;
+
+	private DNATree[] trees;
+
+	private int[] transitionLetters;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		Path path = Files.createTempFile("nsa", ".gv");
+		NSA nsa;
+
+		try
+		{
+			new NSAGenerator(states, letters, density, pairs, seed).write(path.toString());
+			nsa = new NSA(path.toString());
+		}
+		finally
+		{
+			Files.deleteIfExists(path);
+		}
+
+		transitionLetters = ConversionBenchmark.randomLetters(nsa, seed);
+		trees = new DNATree[transitionLetters.length];
+
+		DNATree tree = new DNATree(nsa);
+		Random random = new Random(seed);
+
+		for(int i = -WALK_WARMUP; i < trees.length; i++)
+		{
+			tree = tree.transition(random.nextInt(nsa.getAlphabetSize())).resultState;
+
+			if(i >= 0)
+				trees[i] = tree;
+		}
+	}
+
+	@Benchmark
+	public DNATree.DNATransition transition()
+	{
+		int i = next++ & (trees.length - 1);
+
+		return trees[i].transition(transitionLetters[i]);
+	}
+
+}
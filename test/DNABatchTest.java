@@ -0,0 +1,129 @@
+package automata.nsa;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+ * Regression test of the batch: the NSAs of the jobs done must not stay reachable from the long-lived threads of
+ * the pool, through the transition engines the NSAs keep per thread.
+ */
+public class DNABatchTest {
+
+	private static final int JOBS = 50;
+
+	@Test
+	public void releasesTheNsasOfTheJobs() throws IOException, InterruptedException
+	{
+		Path directory = Files.createTempDirectory("dnabatchtest");
+		String failure;
+
+		try
+		{
+			failure = run(directory);
+		}
+		finally
+		{
+			delete(directory);
+		}
+
+		assertNull(failure, failure);
+	}
+
+	/*
+	 * Runs the jobs on NSAs written to the directory. Returns why the test failed, or null.
+	 */
+	private static String run(Path directory) throws IOException, InterruptedException
+	{
+		final List<WeakReference<NSA>> nsas = new ArrayList<WeakReference<NSA>>();
+		List<DNABatch.Job> jobs = new ArrayList<DNABatch.Job>();
+
+		for(int i = 0; i < JOBS; i++)
+		{
+			Path input = directory.resolve("in" + i + ".gv");
+
+			new NSAGenerator(6, 3, 1.5, 2, 100 + i).write(input.toString());
+			jobs.add(new DNABatch.Job(input.toString(), directory.resolve("out" + i + ".dot").toString()));
+		}
+
+		DNABatch batch = new DNABatch(1, 0) {
+			@Override
+			NSA read(Job job) throws IOException
+			{
+				NSA nsa = super.read(job);
+
+				synchronized(nsas)
+				{
+					nsas.add(new WeakReference<NSA>(nsa));
+				}
+
+				return nsa;
+			}
+		};
+
+		try
+		{
+			StringWriter report = new StringWriter();
+
+			batch.run(jobs, new PrintWriter(report));
+
+			if(!report.toString().contains(JOBS + " jobs: "))
+				return "Not all the jobs ran:\n" + report;
+
+			int reachable = JOBS;
+
+			for(int attempt = 0; attempt < 20 && reachable > 0; attempt++)
+			{
+				System.gc();
+				Thread.sleep(50);
+
+				reachable = 0;
+
+				synchronized(nsas)
+				{
+					for(WeakReference<NSA> nsa : nsas)
+					{
+						if(nsa.get() != null)
+							reachable++;
+					}
+				}
+			}
+
+			if(reachable > 0)
+				return reachable + " of the " + JOBS + " NSAs are still reachable after the batch";
+
+			return null;
+		}
+		finally
+		{
+			batch.close();
+		}
+	}
+
+	/*
+	 * Deletes the directory and the files in it
+	 */
+	private static void delete(Path directory) throws IOException
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+		{
+			for(Path file : files)
+			{
+				Files.delete(file);
+			}
+		}
+
+		Files.delete(directory);
+	}
+
+}